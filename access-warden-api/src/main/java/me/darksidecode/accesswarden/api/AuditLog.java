@@ -0,0 +1,270 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.api;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers the violations reported in audit mode (see {@link RestrictedCall#auditOnly()}) to a {@link ViolationSink}.
+ * <p>
+ * Threads that make violating calls only publish the violations to a bounded in-memory ring buffer, and
+ * a background daemon thread drains it to the sink - so these threads never block on the sink. When the
+ * buffer is full, new violations are dropped (and counted, see {@link #droppedViolations()}) rather than
+ * making the calling threads wait. The size of the buffer can be set with the "accesswarden.auditBufferSize"
+ * system property (8192 violations by default), and is rounded up to a power of two.
+ * <p>
+ * Violations are delivered to an instance of the class named by the "accesswarden.auditSink" system property (which
+ * must have a public no-arguments constructor), or, if it is not set, to the sink set with {@link #setSink(ViolationSink)}
+ * - or printed to {@link System#err} until one is set. {@link JournalSink} can be used for high rates of violations.
+ * <p>
+ * Calls that are denied are only reported (after they are denied) if the "accesswarden.reportDenials"
+ * or the "accesswarden.stacklessDenials" system property is set to "true".
+ */
+public final class AuditLog {
+
+    /**
+     * Enables audit mode for all configurations, not only for those that enable it explicitly.
+     */
+    static final boolean AUDIT_ALL = Boolean.getBoolean("accesswarden.auditOnly");
+
+    /**
+     * Reports calls that are denied as well, not only those that are let through in audit mode.
+     */
+    static final boolean REPORT_DENIALS = Boolean.getBoolean("accesswarden.reportDenials")
+            || StacklessSecurityException.ENABLED;
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final int BUFFER_SIZE = Integer.highestOneBit(Math.max(2,
+            Integer.getInteger("accesswarden.auditBufferSize", DEFAULT_BUFFER_SIZE) * 2 - 1));
+
+    private static final RuntimePermission SET_SINK_PERMISSION = new RuntimePermission("accesswarden.setAuditSink");
+
+    private static final ViolationRing BUFFER = new ViolationRing(BUFFER_SIZE);
+
+    private static final LongAdder REPORTED = new LongAdder();
+
+    private static final LongAdder DROPPED = new LongAdder();
+
+    private static final LongAdder SINK_FAILURES = new LongAdder();
+
+    private static final AtomicBoolean CONSUMER_STARTED = new AtomicBoolean();
+
+    private static final AtomicBoolean SINK_SET = new AtomicBoolean(System.getProperty("accesswarden.auditSink") != null);
+
+    private static volatile Thread consumer;
+
+    /**
+     * Set by the consumer before it checks the buffer for the last time and parks,
+     * so that threads that publish violations only unpark it when it may be waiting.
+     */
+    private static volatile boolean consumerParked;
+
+    /**
+     * Set by the shutdown hook to make the consumer deliver whatever is left in the buffer and exit.
+     */
+    private static volatile boolean shuttingDown;
+
+    private static volatile ViolationSink sink = createDefaultSink();
+
+    private AuditLog() {}
+
+    private static ViolationSink createDefaultSink() {
+        String sinkClassName = System.getProperty("accesswarden.auditSink");
+
+        if (sinkClassName != null) {
+            try {
+                return (ViolationSink) Class.forName(sinkClassName, true, ClassLoader.getSystemClassLoader())
+                        .getConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException | LinkageError ex) {
+                System.err.println("[Access Warden] Failed to create audit sink " + sinkClassName + ": " + ex);
+            }
+        }
+
+        return violation -> System.err.println("[Access Warden] " + (violation.denied() ? "Denied" : "Audit")
+                + ": policy " + violation.policyId()
+                + " violated by " + violation.offendingFrame() + " (" + violation.message() + ")");
+    }
+
+    /**
+     * Sets the sink that all violations reported from now on (and those that have not been delivered yet) go to.
+     * <p>
+     * The sink decides where violations (and thus the traces of calls that violate policies) end up, so it can
+     * only be set once, and not at all if it is named by the "accesswarden.auditSink" system property. If there
+     * is a security manager, the caller must also have the "accesswarden.setAuditSink" {@link RuntimePermission}.
+     *
+     * @throws NullPointerException if {@code sink} is {@code null}.
+     *
+     * @throws SecurityException if there is a security manager, and the caller does not have the permission.
+     *
+     * @throws IllegalStateException if the sink has already been set.
+     */
+    public static void setSink(ViolationSink sink) {
+        if (sink == null)
+            throw new NullPointerException("sink cannot be null");
+
+        checkPermission(SET_SINK_PERMISSION);
+
+        if (!SINK_SET.compareAndSet(false, true))
+            throw new IllegalStateException("audit sink has already been set");
+
+        AuditLog.sink = sink;
+    }
+
+    // The security manager is deprecated for removal, but still supported by the JDKs this runs on.
+    @SuppressWarnings("removal")
+    private static void checkPermission(RuntimePermission permission) {
+        SecurityManager securityManager = System.getSecurityManager();
+
+        if (securityManager != null)
+            securityManager.checkPermission(permission);
+    }
+
+    /**
+     * The number of violations that were published to the buffer (whether delivered to the sink yet or not).
+     */
+    public static long reportedViolations() {
+        return REPORTED.sum();
+    }
+
+    /**
+     * The number of violations that were dropped because the buffer was full.
+     */
+    public static long droppedViolations() {
+        return DROPPED.sum();
+    }
+
+    /**
+     * The number of violations that the sink failed to accept (threw an exception for).
+     */
+    public static long sinkFailures() {
+        return SINK_FAILURES.sum();
+    }
+
+    /**
+     * Never throws: it is called from the checks, and audited calls must be let through no matter what.
+     */
+    static void report(String policyId, StackTraceElement offendingFrame, String message, boolean denied) {
+        Violation violation = new Violation(policyId, offendingFrame, message,
+                System.currentTimeMillis(), Thread.currentThread().getId(), denied);
+
+        if (BUFFER.offer(violation))
+            REPORTED.increment();
+        else
+            DROPPED.increment();
+
+        if (!CONSUMER_STARTED.get() && CONSUMER_STARTED.compareAndSet(false, true))
+            startConsumer();
+        else if (consumerParked) {
+            consumerParked = false;
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private static void startConsumer() {
+        // The first violation may be reported by any code, at any time - so the consumer must not inherit anything
+        // from the reporting thread (the sink runs with the permissions and the context class loader of the
+        // consumer), and failing to start it must not fail the reporting call.
+        try {
+            runPrivileged(AuditLog::startConsumerPrivileged);
+        } catch (RuntimeException ex) {
+            System.err.println("[Access Warden] Failed to start the audit consumer, violations will not be delivered: " + ex);
+        }
+    }
+
+    private static void startConsumerPrivileged() {
+        Thread consumer = new Thread(() -> {
+            while (!shuttingDown) {
+                if (deliverNext())
+                    continue;
+
+                // Check the buffer once more after announcing the parking: a violation published after the check
+                // above would otherwise wait for the next one. Either this check sees it, or its publisher sees
+                // the flag and unparks the consumer (unparking a running thread just makes its next park return).
+                consumerParked = true;
+
+                if (!deliverNext() && !shuttingDown)
+                    LockSupport.park(AuditLog.class);
+
+                consumerParked = false;
+            }
+
+            while (deliverNext());
+        }, "Access Warden Audit");
+
+        AuditLog.consumer = consumer;
+
+        consumer.setDaemon(true);
+        consumer.setContextClassLoader(null);
+        consumer.start();
+
+        // Deliver whatever is left in the buffer when the JVM exits. Sinks are not required to be thread-safe,
+        // so the hook does not deliver anything itself, but has the consumer do it, and waits for it to finish.
+        Thread shutdownHook = new Thread(() -> {
+            shuttingDown = true;
+            LockSupport.unpark(consumer);
+
+            try {
+                consumer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "Access Warden Audit Shutdown");
+
+        shutdownHook.setContextClassLoader(null);
+
+        try {
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } catch (IllegalStateException ex) {
+            // The JVM is already shutting down. The consumer keeps delivering until it halts.
+        }
+    }
+
+    // The security manager is deprecated for removal, but still supported by the JDKs this runs on.
+    @SuppressWarnings("removal")
+    private static void runPrivileged(Runnable action) {
+        AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Only ever called from the consumer thread.
+     *
+     * @return false if the buffer was empty.
+     */
+    private static boolean deliverNext() {
+        Violation violation = BUFFER.poll();
+
+        if (violation == null)
+            return false;
+
+        try {
+            sink.accept(violation);
+        } catch (Throwable t) {
+            SINK_FAILURES.increment();
+        }
+
+        return true;
+    }
+
+}
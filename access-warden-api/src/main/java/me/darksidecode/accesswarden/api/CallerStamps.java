@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.api;
+
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Runtime support for caller stamping (enabled with the "accesswarden.stampCallers" system property
+ * during transformation). For policies that only permit particular methods of the transformed jar to
+ * call the protected method, the Access Warden Core module rewrites calls made by these methods so that
+ * they <i>stamp</i> the current thread with a token right before the call, and has the checker of the
+ * protected method <i>consume</i> that token. When the token is there, the call was made directly by
+ * a permitted method, so the checker skips context resolution altogether. Otherwise (for example, when
+ * the method is invoked with reflection, from native code, or by any method that was not rewritten),
+ * the checker falls back to the regular check of the policy.
+ * <p>
+ * Tokens are private to the generated checker class, and it only stamps the current thread for callers that
+ * prove their identity with a full-privilege {@link MethodHandles.Lookup} of their own class. Code can only get
+ * one for a class it does not belong to with deep reflection, which no policy can protect from anyway.
+ * <p>
+ * Normally, you should not use this class yourself.
+ * It is intended for internal use by other Access Warden modules.
+ */
+public final class CallerStamps {
+
+    private static final ThreadLocal<Slot> SLOTS = ThreadLocal.withInitial(Slot::new);
+
+    private CallerStamps() {}
+
+    /**
+     * Stamps the current thread with the specified token, if the specified lookup belongs to a class with
+     * the specified name, loaded by the same class loader as the anchor class (that is, the generated checker
+     * class - which is injected into the same jar as all callers it issues tokens to).
+     *
+     * @throws SecurityException if the lookup does not prove the caller's identity.
+     */
+    public static void stamp(Object token, MethodHandles.Lookup caller, Class<?> anchor, String callerClassName) {
+        Class<?> callerClass = caller.lookupClass();
+
+        if ((caller.lookupModes() & MethodHandles.Lookup.PRIVATE) == 0
+                || callerClass.getClassLoader() != anchor.getClassLoader()
+                || !callerClass.getName().equals(callerClassName))
+            throw new SecurityException("call not permitted: invalid caller stamp");
+
+        SLOTS.get().token = token;
+    }
+
+    /**
+     * Clears the token the current thread was stamped with, if any. Called by stamped callers right after
+     * the call, whether it completed normally or not - so that no token outlives the call it was issued for,
+     * even if the call failed before the protected method could consume it.
+     */
+    public static void clear() {
+        SLOTS.get().token = null;
+    }
+
+    /**
+     * Checks if the current thread is stamped with the specified token, and clears the stamp if so.
+     * A {@code null} token (for example, one of a checker class that is still being initialized) never
+     * matches, even though the current thread is not stamped with anything most of the time.
+     *
+     * @return true if and only if the current thread was stamped with the specified (non-null) token.
+     */
+    public static boolean consume(Object token) {
+        if (token == null)
+            return false;
+
+        Slot slot = SLOTS.get();
+
+        if (slot.token != token)
+            return false;
+
+        slot.token = null;
+        return true;
+    }
+
+    /**
+     * Mutable, so that stamping and consuming a token only costs a single thread-local lookup.
+     */
+    private static final class Slot {
+        private Object token;
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import jdk.jfr.*;
+
+/**
+ * A check of a call to a protected method, emitted by generic and {@code invokedynamic} checkers while a
+ * JFR recording that enables this event is running (it is disabled by default). See {@link JfrSupport}.
+ */
+@Name("AccessWarden.Check")
+@Label("Access Check")
+@Category("Access Warden")
+@Description("A check of a call to a protected method")
+@Enabled(false)
+@StackTrace(false)
+final class CheckEvent extends Event {
+
+    static final String ALLOWED   = "allowed";
+    static final String DENIED    = "denied";
+    static final String AUDITED   = "audited";
+    static final String PERMITTED = "permitted";
+    static final String SKIPPED   = "skipped";
+
+    @Label("Policy")
+    @Description("The id of the policy, normally the protected method")
+    String policy;
+
+    @Label("Frames Inspected")
+    @Description("The number of (filtered) call stack frames that the check inspected")
+    int framesInspected;
+
+    @Label("Unbounded Walk")
+    @Description("Whether the policy requires walking the entire call stack")
+    boolean unboundedWalk;
+
+    @Label("Verdict")
+    @Description("allowed, denied, audited (denied, but let through in audit mode), "
+            + "permitted (admitted by a permit) or skipped (not sampled)")
+    String verdict = ALLOWED;
+
+}
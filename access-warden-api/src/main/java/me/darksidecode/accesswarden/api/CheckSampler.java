@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.api;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which calls to check for a configuration with sampling enabled.
+ * <p>
+ * Each thread checks its first {@link #WARMUP} calls, and then only about one in K calls - which ones
+ * exactly is random, so that callers cannot predict which of their calls will not be checked. K is shared
+ * by all threads, and adapts to the time the sampled checks take: it is doubled when checks of this
+ * configuration took more than the {@link #BUDGET} fraction of the wall-clock time during the last
+ * {@link #WINDOW_NANOS}, and halved when they took less than half of that.
+ * <p>
+ * Calls that are not sampled only cost a thread-local lookup and a counter decrement.
+ */
+final class CheckSampler {
+
+    /**
+     * Enables sampling for all configurations, not only for those that enable it explicitly.
+     */
+    static final boolean SAMPLE_ALL_CHECKS = Boolean.getBoolean("accesswarden.sampleChecks");
+
+    /**
+     * The number of calls each thread checks before it starts sampling.
+     */
+    private static final int WARMUP = Integer.getInteger("accesswarden.samplingWarmup", 1000);
+
+    private static final double DEFAULT_BUDGET = 0.01;
+
+    /**
+     * The fraction of (a single CPU's) time that checks of a single configuration should take at most.
+     */
+    private static final double BUDGET = parseBudget(System.getProperty("accesswarden.samplingBudget"));
+
+    private static final long WINDOW_NANOS = 100_000_000L; // 100 ms
+
+    private static final int MAX_INTERVAL = 1 << 20;
+
+    private final ThreadLocal<Countdown> countdowns = ThreadLocal.withInitial(Countdown::new);
+
+    /**
+     * K - the average number of calls per checked call, once the warmup is over.
+     */
+    private volatile int interval = 1;
+
+    private final LongAdder checkNanos = new LongAdder();
+
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+
+    private static double parseBudget(String budget) {
+        try {
+            double parsed = budget == null ? DEFAULT_BUDGET : Double.parseDouble(budget);
+            return parsed > 0 ? parsed : DEFAULT_BUDGET;
+        } catch (NumberFormatException ex) {
+            return DEFAULT_BUDGET;
+        }
+    }
+
+    int interval() {
+        return interval;
+    }
+
+    /**
+     * @return true if the current call must be checked, false if it should be let through.
+     */
+    boolean shouldCheck() {
+        Countdown countdown = countdowns.get();
+
+        if (countdown.skip > 0) {
+            countdown.skip--;
+            return false;
+        }
+
+        if (countdown.warmup > 0)
+            countdown.warmup--;
+        else {
+            int k = interval;
+            // Uniform in [0, 2K - 2], so that one in K calls is checked on average.
+            countdown.skip = k == 1 ? 0 : ThreadLocalRandom.current().nextInt(2 * k - 1);
+        }
+
+        return true;
+    }
+
+    /**
+     * Accounts for a sampled check that started at the specified time (as per {@link System#nanoTime()}).
+     */
+    void checked(long startNanos) {
+        long now = System.nanoTime();
+        checkNanos.add(now - startNanos);
+
+        long start = windowStart.get();
+        long elapsed = now - start;
+
+        if (elapsed < WINDOW_NANOS || !windowStart.compareAndSet(start, now))
+            return;
+
+        double spent = (double) checkNanos.sumThenReset() / elapsed;
+        int k = interval;
+
+        if (spent > BUDGET)
+            interval = Math.min(MAX_INTERVAL, k * 2);
+        else if (spent < BUDGET / 2)
+            interval = Math.max(1, k / 2);
+    }
+
+    private static final class Countdown {
+        private int warmup = WARMUP;
+
+        /**
+         * The number of calls to let through before the next check.
+         */
+        private int skip;
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.api;
+
+/**
+ * Runtime support for the checker methods that the Access Warden Core module compiles policies into
+ * (when the "accesswarden.compileCheckers" system property is set to "true" during transformation).
+ * Compiled checkers do all glob matching they can with plain string comparisons right in their bytecode,
+ * and only call this class to resolve the call stack and for the cases they cannot handle inline. They also
+ * keep the configuration of their policy, and leave the check to the generic checker while any feature that
+ * they do not support is in use (see {@link #mustCheckGenerically()}). Compiled checks themselves neither record
+ * nor skip the frames of protected methods whose checks have already passed (see
+ * {@link ContextResolution#ensureCallPermitted(int, RestrictedCall.Configuration)}), which only costs performance.
+ * <p>
+ * Normally, you should not use this class yourself.
+ * It is intended for internal use by other Access Warden modules.
+ */
+public final class CompiledChecks {
+
+    private CompiledChecks() {}
+
+    /**
+     * Checks if compiled checkers must leave the check to {@link #ensureCallPermitted(int, RestrictedCall.Configuration)}
+     * right now, because some feature of the generic checker that compiled checkers do not support is in use. These
+     * are the features that need runtime state of the configuration, or that can be turned on while the application
+     * is running: {@link ContextResolution.Permit permits} (while the current thread has some open), denial breakers
+     * (the "accesswarden.denialBreaker" system property), sampling of all checks (the "accesswarden.sampleChecks"
+     * system property), and JFR "AccessWarden.Check" events (while some recording is running).
+     */
+    public static boolean mustCheckGenerically() {
+        return DenialBreaker.ENABLED || CheckSampler.SAMPLE_ALL_CHECKS
+                || JfrSupport.recording || ContextResolution.Permit.hasOpenPermits();
+    }
+
+    /**
+     * Same as {@link ContextResolution#ensureCallPermitted(int, RestrictedCall.Configuration)}, but reports
+     * unexpected setups with a {@link SecurityException}, just like generic checkers do.
+     *
+     * @throws SecurityException if the call is not permitted, or if something is wrong with the current call stack.
+     */
+    public static void ensureCallPermitted(int options, RestrictedCall.Configuration conf) {
+        try {
+            ContextResolution.ensureCallPermitted(options, conf);
+        } catch (UnexpectedSetupException ex) {
+            throw new SecurityException("unexpected setup: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Same as {@link ContextResolution#resolve(int, int)}, but reports unexpected setups with a
+     * {@link SecurityException}, just like generic checkers do - so that compiled checkers
+     * do not have to catch {@link UnexpectedSetupException} themselves.
+     *
+     * @throws SecurityException if something is wrong with the current call stack.
+     */
+    public static FilteredContext resolve(int options, int maxDepth) {
+        try {
+            return ContextResolution.resolve(options, maxDepth);
+        } catch (UnexpectedSetupException ex) {
+            throw new SecurityException("unexpected setup: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return the current {@link System#nanoTime()} if metrics are enabled (see {@link PolicyMetricsMBean}),
+     *         or 0 otherwise. Compiled checkers call this first, and pass the result to
+     *         {@link #allowed(String, long)} or {@link #deny(String, String, boolean, long)}.
+     */
+    public static long startCheck() {
+        return PolicyMetrics.ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Counts an allowed call if metrics are enabled (see {@link PolicyMetricsMBean}).
+     *
+     * @param policyId the id of the policy (see {@link RestrictedCall.Configuration#policyId()}).
+     * @param startNanos the result of {@link #startCheck()}.
+     */
+    public static void allowed(String policyId, long startNanos) {
+        if (PolicyMetrics.ENABLED && policyId != null)
+            PolicyMetrics.of(policyId).allowed(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Denies the call with a {@link SecurityException} with the specified message - or, if audit mode is enabled
+     * (see {@link RestrictedCall#auditOnly()}), reports the violation to the {@link AuditLog} and returns normally,
+     * in which case the compiled checker must return right away as well. Denials are reported too
+     * if the "accesswarden.reportDenials" system property is set to "true".
+     *
+     * @param policyId the id of the violated policy (see {@link RestrictedCall.Configuration#policyId()}).
+     * @param auditOnly whether audit mode is enabled for the violated policy itself.
+     * @param startNanos the result of {@link #startCheck()}.
+     */
+    public static void deny(String message, String policyId, boolean auditOnly, long startNanos) {
+        boolean auditing = auditOnly || AuditLog.AUDIT_ALL;
+
+        if (auditing || AuditLog.REPORT_DENIALS) {
+            // This method is called by the checker method, which is called by the protected method.
+            AuditLog.report(policyId, ContextResolution.findDirectCaller(ContextResolution.Options.FILTER_CONTEXT_RESOLUTION
+                    | ContextResolution.Options.FILTER_RESOLUTION_CALLER | ContextResolution.Options.FILTER_PROTECTED_METHOD),
+                    message, !auditing);
+        }
+
+        if (PolicyMetrics.ENABLED && policyId != null) {
+            if (auditing)
+                PolicyMetrics.of(policyId).allowed(System.nanoTime() - startNanos);
+            else
+                PolicyMetrics.of(policyId).denied(message, System.nanoTime() - startNanos);
+        }
+
+        if (!auditing) {
+            JfrSupport.denied(policyId, message);
+            throw StacklessSecurityException.denial(message);
+        }
+    }
+
+    /**
+     * Checks if the specified class name and method name contain neither "#" characters, nor line terminators.
+     * <p>
+     * Globs with exactly one "#" are compiled into separate comparisons of the class name and the method name,
+     * and their "*" wildcards into prefix/suffix comparisons. Both are only equivalent to matching the glob as
+     * a whole when the call frame is "plain" like that - otherwise {@link #matches(String, String, String)}
+     * must be used. The names of just about any real class and method are plain.
+     */
+    public static boolean isPlain(String className, String methodName) {
+        return isPlain(className) && isPlain(methodName);
+    }
+
+    private static boolean isPlain(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+
+            if (c == '#' || GlobMatcher.isLineTerminator(c))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if the call "className#methodName" matches the specified glob, the way generic checkers do.
+     */
+    public static boolean matches(String glob, String className, String methodName) {
+        return Utils.compileGlob(glob).matches(className, methodName);
+    }
+
+}
@@ -16,8 +16,11 @@
 
 package me.darksidecode.accesswarden.api;
 
-import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 /**
  * Provides low-level access to context resolution and call stack inspection.
@@ -27,11 +30,34 @@ import java.util.List;
  */
 public final class ContextResolution {
 
+    /**
+     * A special value of the {@code maxDepth} parameter of {@link #resolve(int, int)}
+     * that tells it to walk the entire call stack.
+     */
+    public static final int UNLIMITED_DEPTH = Integer.MAX_VALUE;
+
+    private static final StackWalker STACK_WALKER
+            = StackWalker.getInstance(StackWalker.Option.SHOW_REFLECT_FRAMES);
+
+    private static final String TRIPPED_BREAKER_DENIAL_MESSAGE
+            = "call not permitted: too many denied calls with this call stack";
+
+    /**
+     * Lazily initialized, because retaining class references requires a special
+     * permission when there is a security manager - and is rarely needed.
+     */
+    private static final class ClassRetainingStackWalker {
+        private static final StackWalker INSTANCE = StackWalker.getInstance(EnumSet.of(
+                StackWalker.Option.SHOW_REFLECT_FRAMES, StackWalker.Option.RETAIN_CLASS_REFERENCE));
+    }
+
     private ContextResolution() {}
 
     /**
      * Retrieves the current call stack (stack trace), and filters out particular
      * elements of it, depending on provided resolution options.
+     * <p>
+     * This is equivalent to {@code resolve(options, UNLIMITED_DEPTH)}.
      *
      * @param options optional resolution options - call stack filter parameters bitfield.
      *                See {@link Options} for the list of available options. To combine
@@ -48,37 +74,254 @@ public final class ContextResolution {
      *                                  provided options int specifies to filter all reflection frames).
      *                                  Another possible case is that the current call stack is <i>too big</i>.
      *
+     * @see #resolve(int, int)
      * @see FilteredContext
      */
     public static FilteredContext resolve(int options) throws UnexpectedSetupException {
-        StackTraceElement[] allFrames = new Exception().getStackTrace();
-        List<StackTraceElement> callStack = new ArrayList<>();
+        return resolve(options, UNLIMITED_DEPTH);
+    }
 
-        boolean filterCtxRes     = (options & Options.FILTER_CONTEXT_RESOLUTION) != 0;
-        boolean filterReflection = (options & Options.FILTER_REFLECTION_FRAMES ) != 0;
-        boolean filterNative     = (options & Options.FILTER_NATIVE_FRAMES     ) != 0;
-        boolean filterResCaller  = (options & Options.FILTER_RESOLUTION_CALLER ) != 0;
+    /**
+     * Walks the current call stack lazily, from the most recent call to the least recent one,
+     * filtering out particular elements of it on the fly, depending on provided resolution options.
+     * The walk stops as soon as {@code maxDepth} frames have passed the filter, so the frames below
+     * them are never even looked at.
+     *
+     * @param options optional resolution options - call stack filter parameters bitfield.
+     *                See {@link Options} for the list of available options. To combine
+     *                multiple options, use the bitwise OR operator ("|").
+     *
+     * @param maxDepth the maximum number of frames (counting only those that were <i>not</i> filtered
+     *                 out) the returned {@link FilteredContext} should contain, or {@link #UNLIMITED_DEPTH}
+     *                 to walk the entire call stack.
+     *
+     * @return a {@link FilteredContext} object that represents (the {@code maxDepth} most recent frames of)
+     *         the current stack, with maybe particular parts filtered out (removed) as per the specified
+     *         resolution options bitfield.
+     *
+     * @throws IllegalArgumentException if {@code maxDepth} is not positive.
+     *
+     * @throws UnexpectedSetupException if something is wrong with the current call stack
+     *                                  (see the JavaDoc to {@link #resolve(int) for details}.
+     *
+     * @see FilteredContext
+     */
+    public static FilteredContext resolve(int options, int maxDepth) throws UnexpectedSetupException {
+        if (maxDepth <= 0)
+            throw new IllegalArgumentException("maxDepth must be positive");
+
+        // Walk one frame past the FilteredContext limit when unbounded, so that it can tell "too big" stacks.
+        int walkLimit = Math.min(maxDepth, FilteredContext.MAX_CALL_STACK_SIZE + 1);
+        boolean retainClasses = (options & Options.RETAIN_CLASS_REFERENCES) != 0;
+        StackWalker walker = retainClasses ? ClassRetainingStackWalker.INSTANCE : STACK_WALKER;
+
+        FilteredContext.Collector collector = new FilteredContext.Collector(walkLimit, retainClasses);
+        walker.walk(frames -> collectFrames(frames, options, walkLimit, collector, null, null));
+
+        return collector.build();
+    }
+
+    /**
+     * @param verifiedFrames if not {@code null}, the walk stops right after the first frame that
+     *                       is verified by one of the specified entries of this record.
+     *
+     * @return the frame of the protected method, if it was filtered out with
+     *         {@link Options#FILTER_PROTECTED_METHOD}, or {@code null} otherwise.
+     */
+    private static StackWalker.StackFrame collectFrames(Stream<StackWalker.StackFrame> frames, int options,
+                                                        int walkLimit, FilteredContext.Collector collector,
+                                                        VerifiedFrames verifiedFrames, int[] coveringEntries) {
+        FrameFilter filter = new FrameFilter(options);
+        Iterator<StackWalker.StackFrame> it = frames.iterator();
+
+        while (collector.size() < walkLimit && it.hasNext()) {
+            StackWalker.StackFrame frame = it.next();
+
+            if (filter.filtersOut(frame))
+                continue;
+
+            // Only materialize StackTraceElement objects for frames that we actually keep. The frames
+            // that pass the filter can only be reflection ones if reflection frames are not filtered out.
+            collector.add(frame.toStackTraceElement(),
+                    collector.retainsDeclaringClasses() ? frame.getDeclaringClass() : null,
+                    !filter.filterReflection && isReflectionFrame(frame.getClassName()));
+
+            if (verifiedFrames != null && verifiedFrames.isVerified(frame, coveringEntries))
+                break;
+        }
+
+        return filter.protectedFrame;
+    }
+
+    /**
+     * @return the most recent frame of the current call stack that passes the filter
+     *         described by the specified resolution options, or {@code null} if there is none.
+     */
+    private static StackWalker.StackFrame findMostRecentFrame(int options) {
+        StackWalker walker = (options & Options.RETAIN_CLASS_REFERENCES) != 0
+                ? ClassRetainingStackWalker.INSTANCE : STACK_WALKER;
+
+        return walker.walk(frames -> {
+            FrameFilter filter = new FrameFilter(options);
+            Iterator<StackWalker.StackFrame> it = frames.iterator();
+
+            while (it.hasNext()) {
+                StackWalker.StackFrame frame = it.next();
+
+                if (!filter.filtersOut(frame))
+                    return frame;
+            }
+
+            return null;
+        });
+    }
+
+    /**
+     * Decides which frames to filter out as per the specified resolution options bitfield. Must be
+     * fed with frames of a single walk, from the most recent one on, since some of the options
+     * (like {@link Options#FILTER_RESOLUTION_CALLER}) depend on the frame's position in the stack.
+     */
+    private static final class FrameFilter {
+        private final boolean filterCtxRes;
+        private final boolean filterReflection;
+        private final boolean filterNative;
+        private final boolean filterResCaller;
+        private final boolean filterProtected;
+
+        private int framesPastCtxResFrames;
+
+        /**
+         * The frame that was filtered out with {@link Options#FILTER_PROTECTED_METHOD}, if any.
+         */
+        private StackWalker.StackFrame protectedFrame;
+
+        private FrameFilter(int options) {
+            filterCtxRes     = (options & Options.FILTER_CONTEXT_RESOLUTION) != 0;
+            filterReflection = (options & Options.FILTER_REFLECTION_FRAMES ) != 0;
+            filterNative     = (options & Options.FILTER_NATIVE_FRAMES     ) != 0;
+            filterResCaller  = (options & Options.FILTER_RESOLUTION_CALLER ) != 0;
+            filterProtected  = (options & Options.FILTER_PROTECTED_METHOD  ) != 0;
+        }
 
-        int framesPastCtxResFrames = 0;
+        private boolean filtersOut(StackWalker.StackFrame frame) {
+            String className = frame.getClassName();
 
-        for (StackTraceElement frame : allFrames) {
-            if (isCtxResFrame(frame)) {
+            if (isCtxResFrame(className)) {
                 if (filterCtxRes)
-                    continue;
+                    return true;
             } else
                 framesPastCtxResFrames++;
 
             if (filterResCaller && framesPastCtxResFrames == 1)
-                continue;
+                return true;
 
-            if ((filterReflection && isReflectionFrame(frame))
-                    || (filterNative && frame.isNativeMethod()))
-                continue;
+            if (filterProtected && framesPastCtxResFrames == 2) {
+                protectedFrame = frame;
+                return true;
+            }
 
-            callStack.add(frame);
+            return (filterReflection && isReflectionFrame(className))
+                    || (filterNative && frame.isNativeMethod());
         }
+    }
+
+    /**
+     * A scope within which calls of a single thread to protected methods with a particular
+     * configuration are admitted without checks. See {@link #permit(RestrictedCall.Configuration)}.
+     * <p>
+     * Permits cannot be transferred to other threads: they only admit calls of the thread that obtained them,
+     * and can only be closed by that thread. Once closed, a permit admits nothing, even if it is not the most
+     * recently obtained open permit of the thread.
+     */
+    public static final class Permit implements AutoCloseable {
+        /**
+         * The number of open permits of all threads, so that checks do not even
+         * have to look at the current thread's permits when there are none.
+         */
+        private static final AtomicInteger OPEN_PERMITS = new AtomicInteger();
+
+        /**
+         * The most recently obtained open permit of each thread.
+         */
+        private static final ThreadLocal<Permit> MOST_RECENT_PERMIT = new ThreadLocal<>();
+
+        private final RestrictedCall.Configuration conf;
 
-        return new FilteredContext(callStack);
+        private final Thread owner;
+
+        /**
+         * The permit that was the most recently obtained open permit of the thread when this one was obtained.
+         */
+        private final Permit previous;
+
+        /**
+         * The number of frames below the method that obtained this permit.
+         */
+        private final int depth;
+
+        private boolean closed;
+
+        private Permit(RestrictedCall.Configuration conf) {
+            this.conf = conf;
+            owner = Thread.currentThread();
+            depth = callerDepth();
+            previous = MOST_RECENT_PERMIT.get();
+            MOST_RECENT_PERMIT.set(this);
+            OPEN_PERMITS.incrementAndGet();
+        }
+
+        private static boolean admits(RestrictedCall.Configuration conf) {
+            for (Permit permit = MOST_RECENT_PERMIT.get(); permit != null; permit = permit.previous)
+                if (!permit.closed && permit.conf.hasSameRules(conf))
+                    return true;
+
+            return false;
+        }
+
+        static boolean hasOpenPermits() {
+            return OPEN_PERMITS.get() != 0 && MOST_RECENT_PERMIT.get() != null;
+        }
+
+        private static int callerDepth() {
+            return STACK_WALKER.walk(frames -> (int) frames
+                    .filter(frame -> !frame.getClassName().startsWith(ContextResolution.class.getName()))
+                    .count());
+        }
+
+        /**
+         * Closes this permit, so that it does not admit any more calls. Does nothing if it is already closed.
+         *
+         * @throws IllegalStateException if the current thread is not the one that obtained this permit.
+         */
+        @Override
+        public void close() {
+            if (Thread.currentThread() != owner)
+                throw new IllegalStateException("permits can only be closed by the thread that obtained them");
+
+            if (closed)
+                return;
+
+            closed = true;
+            OPEN_PERMITS.decrementAndGet();
+
+            // Normally, permits are closed by the method that obtained them, after all calls that they admitted
+            // have completed. Otherwise, some of these calls may still be running, so the thread can no longer
+            // tell whether the protected method frames on its call stack passed their checks.
+            if (callerDepth() != depth)
+                VerifiedFrames.current().disable();
+
+            // Permits are normally closed in the reverse order, but if they are not, the
+            // ones closed earlier are only forgotten when all more recent ones are closed.
+            Permit mostRecent = MOST_RECENT_PERMIT.get();
+
+            while (mostRecent != null && mostRecent.closed)
+                mostRecent = mostRecent.previous;
+
+            if (mostRecent == null)
+                MOST_RECENT_PERMIT.remove();
+            else
+                MOST_RECENT_PERMIT.set(mostRecent);
+        }
     }
 
     /**
@@ -102,8 +345,247 @@ public final class ContextResolution {
         if (conf == null)
             throw new NullPointerException("conf cannot be null");
 
-        FilteredContext ctx = resolve(conf.contextResolutionOptions());
+        ensureCallPermitted(conf.contextResolutionOptions(), conf);
+    }
+
+    /**
+     * Same as {@link #ensureCallPermitted(RestrictedCall.Configuration)}, but resolves the current call stack
+     * with the specified resolution options instead of {@link RestrictedCall.Configuration#contextResolutionOptions()}.
+     * This is useful when this method is not called from the protected method directly, but through some
+     * intermediate method - such as the checker methods generated by the Access Warden Core module
+     * (which add {@link Options#FILTER_PROTECTED_METHOD} to the options).
+     * <p>
+     * If only the direct caller matters for the configuration (see
+     * {@link RestrictedCall.Configuration#isDirectCallerOnly()}), just the few most recent
+     * frames of the call stack are walked, without resolving a {@link FilteredContext} at all.
+     * <p>
+     * If sampling is enabled for the configuration (see {@link RestrictedCall#sampleChecks()}),
+     * only the calls chosen by the sampler are checked, and all others are let through.
+     * <p>
+     * If audit mode is enabled for the configuration (see {@link RestrictedCall#auditOnly()}), calls that
+     * violate it are reported to the {@link AuditLog} and let through instead of being denied.
+     * <p>
+     * Calls made within the scope of a {@link Permit} for a configuration with the same rules
+     * (see {@link #permit(RestrictedCall.Configuration)}) are admitted without any checks.
+     * <p>
+     * If denial breakers are enabled with the "accesswarden.denialBreaker" system property, calls with
+     * call stacks that keep getting denied are denied right away for a while, without evaluating the
+     * configuration (see {@link #ensureCallPermitted(FilteredContext, RestrictedCall.Configuration)}).
+     * <p>
+     * If metrics are enabled with the "accesswarden.metrics" system property, calls are counted and timed
+     * per policy (see {@link PolicyMetricsMBean}). While a JFR recording is running, checks and denials
+     * are recorded as the "AccessWarden.Check" and "AccessWarden.Denied" events (disabled by default).
+     * <p>
+     * If the options contain {@link Options#FILTER_PROTECTED_METHOD}, the caller of the caller of this
+     * method is assumed to be a protected method that never continues if this method throws. Then
+     * this thread remembers passed checks, and if the current call stack contains (the frames of)
+     * protected methods whose checks have already verified all frames below them against this
+     * configuration, the walk stops at the most recent of these frames.
+     *
+     * @param options resolution options bitfield to resolve the current call stack with (see {@link Options}).
+     *
+     * @param conf the configuration to follow.
+     *
+     * @throws NullPointerException if {@code conf} is {@code null}.
+     *
+     * @throws UnexpectedSetupException if something is wrong with the current call stack
+     *                                  (see the JavaDoc to {@link #resolve(int) for details}.
+     *
+     * @see #ensureCallPermitted(RestrictedCall.Configuration)
+     */
+    public static void ensureCallPermitted(int options,
+                                           RestrictedCall.Configuration conf) throws UnexpectedSetupException {
+        if (conf == null)
+            throw new NullPointerException("conf cannot be null");
+
+        PolicyMetrics metrics = conf.metrics;
+
+        if (metrics == null && !JfrSupport.recording) {
+            enforce(options, conf, null);
+            return;
+        }
+
+        CheckEvent event = JfrSupport.beginCheck(conf);
+        long startNanos = System.nanoTime();
+
+        try {
+            enforce(options, conf, event);
+        } catch (SecurityException ex) {
+            if (metrics != null)
+                metrics.denied(ex.getMessage(), System.nanoTime() - startNanos);
+
+            if (event != null) {
+                event.verdict = CheckEvent.DENIED;
+                JfrSupport.commitCheck(event);
+            }
+
+            JfrSupport.denied(conf.policyId(), ex.getMessage());
+            throw ex;
+        }
+
+        if (metrics != null)
+            metrics.allowed(System.nanoTime() - startNanos);
+
+        if (event != null)
+            JfrSupport.commitCheck(event);
+    }
+
+    /**
+     * @param event the JFR event to describe the check in, or {@code null} if it is not recorded.
+     */
+    private static void enforce(int options, RestrictedCall.Configuration conf,
+                                CheckEvent event) throws UnexpectedSetupException {
+        if (Permit.OPEN_PERMITS.get() != 0 && Permit.admits(conf)) {
+            if (event != null)
+                event.verdict = CheckEvent.PERMITTED;
+
+            return;
+        }
+
+        CheckSampler sampler = conf.sampler;
+
+        if (sampler == null)
+            checkOrAudit(options, conf, event);
+        else if (sampler.shouldCheck()) {
+            long startNanos = System.nanoTime();
+
+            try {
+                checkOrAudit(options, conf, event);
+            } finally {
+                sampler.checked(startNanos);
+            }
+        } else if (event != null)
+            event.verdict = CheckEvent.SKIPPED;
+    }
+
+    private static void checkOrAudit(int options, RestrictedCall.Configuration conf,
+                                     CheckEvent event) throws UnexpectedSetupException {
+        boolean auditing = conf.isAuditing();
+
+        if (!auditing && !AuditLog.REPORT_DENIALS) {
+            check(options, conf, event);
+            return;
+        }
+
+        try {
+            check(options, conf, event);
+        } catch (SecurityException ex) {
+            StackTraceElement offendingFrame = ex instanceof StacklessSecurityException
+                    ? ((StacklessSecurityException) ex).offendingFrame : null;
+
+            if (offendingFrame == null)
+                offendingFrame = findDirectCaller(options);
+
+            AuditLog.report(conf.policyId(), offendingFrame, ex.getMessage(), !auditing);
+
+            if (!auditing)
+                throw ex;
+
+            if (event != null)
+                event.verdict = CheckEvent.AUDITED;
+        }
+    }
+
+    /**
+     * @return the most recent frame that passes the filter described by the specified resolution options and is
+     *         neither a reflection frame, nor a native one - or, if there is no such frame, just the most recent
+     *         frame that passes the filter, or {@code null} if there is none at all.
+     */
+    static StackTraceElement findDirectCaller(int options) {
+        int nonReflectionNonNative = options | Options.FILTER_REFLECTION_FRAMES | Options.FILTER_NATIVE_FRAMES;
+        StackWalker.StackFrame directCaller = findMostRecentFrame(nonReflectionNonNative & ~Options.RETAIN_CLASS_REFERENCES);
+
+        if (directCaller == null)
+            directCaller = findMostRecentFrame(options & ~Options.RETAIN_CLASS_REFERENCES);
+
+        return directCaller == null ? null : directCaller.toStackTraceElement();
+    }
+
+    private static void check(int options, RestrictedCall.Configuration conf,
+                              CheckEvent event) throws UnexpectedSetupException {
+        if (conf.isDirectCallerOnly()) {
+            if (event != null)
+                event.framesInspected = 1;
+
+            directCallerCheck(options, conf);
+        } else if ((options & Options.FILTER_PROTECTED_METHOD) != 0 && VerifiedFrames.isApplicable(conf))
+            verifiedFramesCheck(options, conf, event);
+        else {
+            FilteredContext ctx = resolve(options, conf.contextResolutionDepth());
+
+            if (event != null)
+                event.framesInspected = ctx.size();
+
+            ensureCallPermitted(ctx, conf);
+        }
+    }
+
+    /**
+     * Checks the specified configuration once, as if the method that calls this method were calling a protected
+     * method with that configuration, and then admits all calls of the current thread to protected methods with
+     * a configuration with the same rules without any further checks - until the returned permit is closed.
+     * This amortizes checks of protected methods that are called in tight loops:
+     * <pre>
+     *     try (ContextResolution.Permit permit = ContextResolution.permit(Player.JUMP_CONFIGURATION)) {
+     *         for (Player player : players)
+     *             player.jump(); // annotated with a RestrictedCall equivalent to JUMP_CONFIGURATION
+     *     }
+     * </pre>
+     * Note that <i>everything</i> the current thread runs within the scope is admitted, including the code
+     * the calling method calls - so never call code you do not trust from within the scope.
+     *
+     * @param conf the configuration to check and admit calls for.
+     *
+     * @return an open permit, which must be closed by the current thread.
+     *
+     * @throws NullPointerException if {@code conf} is {@code null}.
+     *
+     * @throws SecurityException if the calling method is not permitted to call protected methods with the
+     *                           specified configuration (unless the configuration is in audit mode - then
+     *                           the violation is reported, and the permit is granted anyway).
+     *
+     * @throws UnexpectedSetupException if something is wrong with the current call stack
+     *                                  (see the JavaDoc to {@link #resolve(int) for details}.
+     */
+    public static Permit permit(RestrictedCall.Configuration conf) throws UnexpectedSetupException {
+        if (conf == null)
+            throw new NullPointerException("conf cannot be null");
+
+        // The caller of this method takes the place of the direct caller of a protected method,
+        // so (unlike with checks made from inside protected methods) it must not be filtered out.
+        // The whole point of a permit is to check once, so always check (never sample) here.
+        checkOrAudit(conf.contextResolutionOptions() & ~Options.FILTER_RESOLUTION_CALLER, conf, null);
+
+        return new Permit(conf);
+    }
+
+    private static void verifiedFramesCheck(int options, RestrictedCall.Configuration conf,
+                                            CheckEvent event) throws UnexpectedSetupException {
+        VerifiedFrames verifiedFrames = VerifiedFrames.current();
+        // Calls admitted by permits are not checked, so while the thread has any, the frames of protected
+        // methods that are on the call stack do not necessarily belong to invocations that passed the check.
+        int[] coveringEntries = Permit.hasOpenPermits() ? null : verifiedFrames.coveringEntries(conf);
+
+        // Same as resolve(options, UNLIMITED_DEPTH), but stops at the first verified frame, if any.
+        // Verified frames are identified by their classes, so these must be retained in any case.
+        int walkLimit = FilteredContext.MAX_CALL_STACK_SIZE + 1;
+        boolean retainClasses = (options & Options.RETAIN_CLASS_REFERENCES) != 0;
+
+        FilteredContext.Collector collector = new FilteredContext.Collector(walkLimit, retainClasses);
+        StackWalker.StackFrame protectedFrame = ClassRetainingStackWalker.INSTANCE.walk(frames -> collectFrames(
+                frames, options, walkLimit, collector, coveringEntries == null ? null : verifiedFrames, coveringEntries));
+
+        FilteredContext ctx = collector.build();
+
+        if (event != null)
+            event.framesInspected = ctx.size();
+
         ensureCallPermitted(ctx, conf);
+
+        // Calls that were not sampled, and violating calls in audit mode, are let through,
+        // so frames of protected methods with these configurations prove nothing.
+        if (protectedFrame != null && conf.enforcesEveryCall())
+            verifiedFrames.record(protectedFrame, conf);
     }
 
     /**
@@ -111,6 +593,10 @@ public final class ContextResolution {
      * allowed or not based on the specified configuration. This
      * method throws a {@link java.lang.SecurityException} if the
      * given call stack violates the specified rules/configuration.
+     * <p>
+     * If denial breakers are enabled with the "accesswarden.denialBreaker" system property, call stacks
+     * that were denied too many times within a short while are denied right away for a while, without
+     * evaluating the configuration (see {@link RestrictedCall.Configuration#denialBreakerTrips()}).
      *
      * @param ctx the current call stack (see {@link #resolve(int)}).
      *
@@ -132,62 +618,176 @@ public final class ContextResolution {
         if (conf == null)
             throw new NullPointerException("conf cannot be null");
 
-        if (conf.exactExpectedCallStack().isEmpty())
-            generalCallStackCheck(ctx, conf);
-        else
-            exactCallStackMatchCheck(ctx, conf);
+        DenialBreaker breaker = conf.denialBreaker;
+
+        if (breaker == null) {
+            evaluate(ctx, conf);
+            return;
+        }
+
+        if (breaker.mayReject() && breaker.rejects(ctx))
+            throw StacklessSecurityException.denial(TRIPPED_BREAKER_DENIAL_MESSAGE, ctx);
+
+        try {
+            evaluate(ctx, conf);
+        } catch (SecurityException ex) {
+            breaker.denied(ctx);
+            throw ex;
+        }
+    }
+
+    private static void evaluate(FilteredContext ctx, RestrictedCall.Configuration conf) {
+        VerdictCache verdictCache = conf.verdictCache;
+
+        if (verdictCache != null) {
+            VerdictCache.Entry cached = verdictCache.get(ctx);
+
+            if (cached != null) {
+                if (cached.denialMessage() != null)
+                    throw StacklessSecurityException.denial(cached.denialMessage(), ctx);
+
+                return;
+            }
+        }
+
+        try {
+            if (conf.exactExpectedCallStack().isEmpty())
+                generalCallStackCheck(ctx, conf);
+            else
+                exactCallStackMatchCheck(ctx, conf);
+        } catch (SecurityException ex) {
+            if (verdictCache != null)
+                verdictCache.put(ctx, ex.getMessage());
+
+            throw ex;
+        }
+
+        if (verdictCache != null)
+            verdictCache.put(ctx, null);
     }
 
     private static void generalCallStackCheck(FilteredContext ctx, RestrictedCall.Configuration conf) {
         if (conf.prohibitReflectionTraces() && ctx.containsReflectionCalls())
-            throw new SecurityException("call not permitted: reflection traces are prohibited");
+            throw StacklessSecurityException.denial("call not permitted: reflection traces are prohibited", ctx);
 
         if (conf.prohibitNativeTraces() && ctx.containsNativeCalls())
-            throw new SecurityException("call not permitted: native traces are prohibited");
+            throw StacklessSecurityException.denial("call not permitted: native traces are prohibited", ctx);
 
         if (conf.prohibitArbitraryInvocation()) {
-            StackTraceElement directCaller = ctx.mostRecentNonReflectionNonNativeCall();
-            boolean directCallerPermitted = false;
-
-            for (String permittedSrc : conf.permittedSources()) {
-                if (Utils.callFrameMatches(directCaller, permittedSrc)) {
-                    directCallerPermitted = true;
-                    break;
-                }
+            int directCallerIdx = ctx.mostRecentNonReflectionNonNativeCallIndex();
+
+            if (directCallerIdx == -1 || !isPermittedSource(ctx.frame(directCallerIdx).getClassName(),
+                    ctx.frame(directCallerIdx).getMethodName(),
+                    conf.strictClassIdentity() ? ctx.declaringClass(directCallerIdx) : null, conf))
+                throw StacklessSecurityException.denial("call not permitted: arbitrary invocation is prohibited", ctx);
+        }
+
+        if (!conf.prohibitedSourcesMatcher.isEmpty()) {
+            // Test each frame against all prohibited sources at once, in a single pass over the stack.
+            for (int i = 0; i < ctx.size(); i++) {
+                StackTraceElement frame = ctx.frame(i);
+
+                if (conf.prohibitedSourcesMatcher.matchesAny(frame.getClassName(), frame.getMethodName()))
+                    throw StacklessSecurityException.denial("call not permitted: invocation source is prohibited", ctx);
             }
+        }
+    }
+
+    private static void directCallerCheck(int options,
+                                          RestrictedCall.Configuration conf) throws UnexpectedSetupException {
+        // Filter reflection and native frames out regardless of the options (these are filtered out with
+        // such configurations anyway), so that the most recent frame that passes the filter is exactly
+        // the most recent non-reflection non-native call.
+        boolean retainClass = conf.strictClassIdentity();
+        StackWalker.StackFrame directCaller = findMostRecentFrame(options
+                | Options.FILTER_REFLECTION_FRAMES | Options.FILTER_NATIVE_FRAMES
+                | (retainClass ? Options.RETAIN_CLASS_REFERENCES : 0));
+
+        if (directCaller == null)
+            // Same as what resolve(int, int) would do.
+            throw new UnexpectedSetupException("call stack cannot be empty");
+
+        DenialBreaker breaker = conf.denialBreaker;
+
+        if (breaker == null) {
+            evaluate(directCaller, retainClass, conf);
+            return;
+        }
+
+        if (breaker.mayReject() && breaker.rejects(directCaller, retainClass))
+            throw StacklessSecurityException.denial(TRIPPED_BREAKER_DENIAL_MESSAGE, directCaller);
 
-            if (!directCallerPermitted)
-                throw new SecurityException("call not permitted: arbitrary invocation is prohibited");
+        try {
+            evaluate(directCaller, retainClass, conf);
+        } catch (SecurityException ex) {
+            breaker.denied(directCaller, retainClass);
+            throw ex;
         }
+    }
+
+    private static void evaluate(StackWalker.StackFrame directCaller, boolean retainClass,
+                                 RestrictedCall.Configuration conf) {
+        VerdictCache verdictCache = conf.verdictCache;
 
-        for (String prohibitedSrc : conf.prohibitedSources()) {
-            StackTraceElement prohibitedCaller
-                    = ctx.mostRecentCall(frame -> Utils.callFrameMatches(frame, prohibitedSrc));
+        if (verdictCache != null) {
+            VerdictCache.Entry cached = verdictCache.get(directCaller, retainClass);
 
-            if (prohibitedCaller != null)
-                throw new SecurityException("call not permitted: invocation source is prohibited");
+            if (cached != null) {
+                if (cached.denialMessage() != null)
+                    throw StacklessSecurityException.denial(cached.denialMessage(), directCaller);
+
+                return;
+            }
         }
+
+        boolean permitted = isPermittedSource(directCaller.getClassName(), directCaller.getMethodName(),
+                retainClass ? directCaller.getDeclaringClass() : null, conf);
+        String denialMessage = permitted ? null : "call not permitted: arbitrary invocation is prohibited";
+
+        if (verdictCache != null)
+            verdictCache.put(directCaller, retainClass, denialMessage);
+
+        if (!permitted)
+            throw StacklessSecurityException.denial(denialMessage, directCaller);
+    }
+
+    private static boolean isPermittedSource(String className, String methodName,
+                                             Class<?> declaringClass, RestrictedCall.Configuration conf) {
+        if (!conf.strictClassIdentity())
+            return conf.permittedSourcesMatcher.matchesAny(className, methodName);
+
+        // Sources with a literal class name only match frames of exactly that class (not
+        // just any class with the same name), so compare the classes themselves first.
+        GlobSet classBoundSources = conf.permittedSourcesOf(declaringClass);
+
+        return (classBoundSources != null && classBoundSources.matchesAny(className, methodName))
+                || conf.classUnboundPermittedSourcesMatcher.matchesAny(className, methodName);
     }
 
     private static void exactCallStackMatchCheck(FilteredContext ctx, RestrictedCall.Configuration conf) {
-        List<StackTraceElement> callStack = ctx.filteredCallStack();
-        List<String> expectedCallStack = conf.exactExpectedCallStack();
+        List<GlobMatcher> expectedCallStack = conf.exactExpectedCallStackMatchers;
+
+        if (ctx.size() != expectedCallStack.size())
+            throw StacklessSecurityException.denial("call not permitted: unexpected call stack size", ctx);
 
-        if (callStack.size() != expectedCallStack.size())
-            throw new SecurityException("call not permitted: unexpected call stack size");
+        for (int i = 0; i < ctx.size(); i++) {
+            StackTraceElement frame = ctx.frame(i);
 
-        for (int i = 0; i < callStack.size(); i++)
-            if (!Utils.callFrameMatches(callStack.get(i), expectedCallStack.get(i)))
-                throw new SecurityException("call not permitted: unexpected call stack frame");
+            if (!expectedCallStack.get(i).matches(frame.getClassName(), frame.getMethodName()))
+                throw StacklessSecurityException.denial("call not permitted: unexpected call stack frame", ctx);
+        }
     }
 
-    static boolean isCtxResFrame(StackTraceElement frame) {
-        return frame.getClassName().equals(ContextResolution.class.getName());
+    static boolean isCtxResFrame(String className) {
+        // CompiledChecks only delegates to this class, so it is a part of context resolution as well.
+        return className.equals(ContextResolution.class.getName())
+            || className.equals(CompiledChecks   .class.getName());
     }
 
-    static boolean isReflectionFrame(StackTraceElement frame) {
-        return frame.getClassName().startsWith("java.lang.reflect.")
-            || frame.getClassName().startsWith("sun.reflect."      );
+    static boolean isReflectionFrame(String className) {
+        return className.startsWith("java.lang.reflect."   )
+            || className.startsWith("jdk.internal.reflect.")
+            || className.startsWith("sun.reflect."         );
     }
 
     /**
@@ -203,14 +803,14 @@ public final class ContextResolution {
 
         /**
          * Removes all stack trace lines that are related to any of the {@link ContextResolution}
-         * class methods, such as {@link #resolve(int)}.
+         * class methods, such as {@link #resolve(int)} (or of {@link CompiledChecks}, which uses them).
          */
         public static final int FILTER_CONTEXT_RESOLUTION = 0b1;
 
         /**
          * Removes all stack trace lines that are <i>reflection</i> calls, that is,
          * those lines where the caller class is located in one of the following packages:
-         * {@code java.lang.reflect} or {@code sun.reflect}.
+         * {@code java.lang.reflect}, {@code jdk.internal.reflect} or {@code sun.reflect}.
          */
         public static final int FILTER_REFLECTION_FRAMES  = 0b10;
 
@@ -226,6 +826,22 @@ public final class ContextResolution {
          * the very first (the most recent) stack trace frame in the call stack).
          */
         public static final int FILTER_RESOLUTION_CALLER  = 0b1000;
+
+        /**
+         * Removes exactly one line from the stack trace that indicates the caller of the
+         * <i>caller method</i> of the {@link #resolve(int)} method. This is the <i>protected method</i>
+         * itself when the resolution is performed from inside a checker method generated by the
+         * Access Warden Core module, which sits between the protected method and {@link ContextResolution}.
+         */
+        public static final int FILTER_PROTECTED_METHOD   = 0b10000;
+
+        /**
+         * Does not filter anything out, but makes the resolution retain the {@link Class} objects that
+         * declare the methods of the call frames, so that frames can be compared by class identity rather
+         * than by class name. This requires the {@code getStackWalkerWithClassReference} runtime permission
+         * if there is a security manager.
+         */
+        public static final int RETAIN_CLASS_REFERENCES   = 0b100000;
     }
 
 }
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A circuit breaker that bounds the CPU time that calls which keep getting denied (for example, some code
+ * spinning on a protected entry point) can burn on evaluating the configuration: once calls with the same
+ * call stack are denied for the configured number of times within a short window, the breaker "trips" for
+ * that call stack, and all further calls with it are denied right away - without evaluating the globs -
+ * until the breaker expires.
+ * <p>
+ * Call stacks are identified by exactly the (filtered) frames that are inspected to check them (see
+ * {@link InspectedFrames}), which are all the verdict depends on - so a tripped breaker only ever denies calls
+ * that would be denied anyway. In particular, denials caused by frames deeper in the call stack (for example,
+ * by a prohibited source that invokes some method reflectively) never affect calls of the same method with
+ * other call stacks. Call stacks are still resolved for every call, breakers only save the rest of the check.
+ * <p>
+ * Breakers are enabled with the "accesswarden.denialBreaker" system property. The number of denials that
+ * trip a breaker, the window (in milliseconds) they must happen within, and the time (in milliseconds)
+ * a tripped breaker stays tripped for are set with the "accesswarden.denialBreakerThreshold" (16 by default),
+ * "accesswarden.denialBreakerWindow" (1000 by default), and "accesswarden.denialBreakerTtl"
+ * (10000 by default) system properties.
+ * <p>
+ * Like {@link VerdictCache}, breakers are small set-associative lock-free caches of their call stacks.
+ */
+final class DenialBreaker {
+
+    static final boolean ENABLED = Boolean.getBoolean("accesswarden.denialBreaker");
+
+    private static final int THRESHOLD = Math.max(1, Integer.getInteger("accesswarden.denialBreakerThreshold", 16));
+
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong("accesswarden.denialBreakerWindow", 1000));
+
+    private static final long TTL_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong("accesswarden.denialBreakerTtl", 10000));
+
+    private static final int CAPACITY = 64;
+
+    private static final int WAYS = 4;
+
+    private final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(CAPACITY);
+
+    private final LongAdder trips = new LongAdder();
+
+    private final LongAdder rejections = new LongAdder();
+
+    private volatile boolean everTripped;
+
+    /**
+     * The time (in {@link System#nanoTime()}) until which some call stack may be tripped. Updated without
+     * synchronization, so a race can make it earlier than it should be - which only makes calls go through
+     * the full check again sooner, and is not worth a compare-and-set loop on every trip.
+     */
+    private volatile long latestExpiry;
+
+    long trips() {
+        return trips.sum();
+    }
+
+    long rejections() {
+        return rejections.sum();
+    }
+
+    /**
+     * Checks if the breaker may be tripped for some call stack at all. This is cheap, and allows
+     * to not look the call stack up for every call while no call stack is being denied.
+     */
+    boolean mayReject() {
+        return everTripped && System.nanoTime() - latestExpiry < 0;
+    }
+
+    /**
+     * Checks if the breaker is tripped for the specified call stack, and counts a rejection if it is.
+     */
+    boolean rejects(FilteredContext ctx) {
+        return rejects(find(InspectedFrames.hash(ctx), ctx));
+    }
+
+    /**
+     * Checks if the breaker is tripped for the call stack consisting of just
+     * the specified frame, and counts a rejection if it is.
+     */
+    boolean rejects(StackWalker.StackFrame frame, boolean retainedClass) {
+        return rejects(find(InspectedFrames.hash(frame, retainedClass), frame, retainedClass));
+    }
+
+    /**
+     * Counts a denied call with the specified call stack, and trips the breaker
+     * for it if it has been denied for too many times within the window.
+     */
+    void denied(FilteredContext ctx) {
+        long now = System.nanoTime();
+        Entry entry = find(InspectedFrames.hash(ctx), ctx);
+
+        if (entry == null)
+            entry = insert(InspectedFrames.of(ctx), now);
+
+        denied(entry, now);
+    }
+
+    /**
+     * Counts a denied call with the call stack consisting of just the specified frame, and trips
+     * the breaker for it if it has been denied for too many times within the window.
+     */
+    void denied(StackWalker.StackFrame frame, boolean retainedClass) {
+        long now = System.nanoTime();
+        Entry entry = find(InspectedFrames.hash(frame, retainedClass), frame, retainedClass);
+
+        if (entry == null)
+            entry = insert(InspectedFrames.of(frame, retainedClass), now);
+
+        denied(entry, now);
+    }
+
+    private boolean rejects(Entry entry) {
+        if (entry == null || System.nanoTime() - entry.trippedUntil >= 0)
+            return false;
+
+        rejections.increment();
+        return true;
+    }
+
+    private void denied(Entry entry, long now) {
+        int denials;
+
+        // Races between threads that are denied at the same time can only lose a few denials.
+        if (now - entry.windowStart > WINDOW_NANOS) {
+            entry.windowStart = now;
+            entry.denials.set(1);
+            denials = 1;
+        } else
+            denials = entry.denials.incrementAndGet();
+
+        if (denials >= THRESHOLD && now - entry.trippedUntil >= 0) {
+            long expiry = now + TTL_NANOS;
+            entry.trippedUntil = expiry;
+            trips.increment();
+
+            if (!everTripped || expiry - latestExpiry > 0)
+                latestExpiry = expiry;
+
+            everTripped = true;
+        }
+    }
+
+    private Entry find(int hash, FilteredContext ctx) {
+        for (int i = 0; i < WAYS; i++) {
+            Entry entry = slots.get((hash + i) & (CAPACITY - 1));
+
+            if (entry != null && entry.frames.matches(ctx, hash))
+                return entry;
+        }
+
+        return null;
+    }
+
+    private Entry find(int hash, StackWalker.StackFrame frame, boolean retainedClass) {
+        for (int i = 0; i < WAYS; i++) {
+            Entry entry = slots.get((hash + i) & (CAPACITY - 1));
+
+            if (entry != null && entry.frames.matches(frame, retainedClass, hash))
+                return entry;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the new entry, which may not end up in the breaker if another thread inserts an entry concurrently.
+     */
+    private Entry insert(InspectedFrames frames, long now) {
+        Entry newEntry = new Entry(frames, now);
+
+        // Prefer free slots, then slots of call stacks that are not tripped, and then the
+        // slot of the call stack whose breaker expires first. Losing a race is harmless.
+        int victim = -1;
+        Entry victimEntry = null;
+
+        for (int i = 0; i < WAYS; i++) {
+            int slot = (frames.hash + i) & (CAPACITY - 1);
+            Entry entry = slots.get(slot);
+
+            if (entry == null || now - entry.trippedUntil >= 0) {
+                victim = slot;
+                victimEntry = entry;
+                break;
+            }
+
+            if (victimEntry == null || entry.trippedUntil - victimEntry.trippedUntil < 0) {
+                victim = slot;
+                victimEntry = entry;
+            }
+        }
+
+        slots.compareAndSet(victim, victimEntry, newEntry);
+        return newEntry;
+    }
+
+    private static final class Entry {
+        private final InspectedFrames frames;
+
+        private final AtomicInteger denials = new AtomicInteger();
+
+        private volatile long windowStart;
+
+        private volatile long trippedUntil;
+
+        private Entry(InspectedFrames frames, long now) {
+            this.frames = frames;
+            this.windowStart = now;
+            this.trippedUntil = now; // not tripped
+        }
+    }
+
+}
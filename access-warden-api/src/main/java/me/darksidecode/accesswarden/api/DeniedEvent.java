@@ -0,0 +1,41 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import jdk.jfr.*;
+
+/**
+ * A call to a protected method that was denied, emitted by all checkers while a JFR recording
+ * that enables this event is running (it is disabled by default). See {@link JfrSupport}.
+ */
+@Name("AccessWarden.Denied")
+@Label("Access Denied")
+@Category("Access Warden")
+@Description("A call to a protected method that was denied")
+@Enabled(false)
+final class DeniedEvent extends Event {
+
+    @Label("Policy")
+    @Description("The id of the policy, normally the protected method")
+    String policy;
+
+    @Label("Reason")
+    @Description("The message of the SecurityException the call was denied with")
+    String reason;
+
+}
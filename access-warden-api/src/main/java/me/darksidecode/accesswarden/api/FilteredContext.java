@@ -16,6 +16,7 @@
 
 package me.darksidecode.accesswarden.api;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.function.Predicate;
@@ -35,24 +36,53 @@ public final class FilteredContext {
      * The maximum allowed number of call stack traces (stack trace lines)
      * in the backed filtered {@link StackTraceElement} storage.
      */
-    private static final int MAX_CALL_STACK_SIZE = 5000;
+    static final int MAX_CALL_STACK_SIZE = 5000;
 
-    private final List<StackTraceElement> callStack;
+    /**
+     * Filtered frames, most recent first. Only the first {@link #size} elements are used:
+     * the array is handed over by the {@link Collector} as is, without trimming or copying.
+     */
+    private final StackTraceElement[] callStack;
 
-    FilteredContext(List<StackTraceElement> callStack) throws UnexpectedSetupException {
-        if (callStack == null)
-            throw new UnexpectedSetupException(
-                    "call stack cannot be null");
+    private final int size;
+
+    /**
+     * Classes declaring the methods of the respective {@link #callStack} frames, or {@code null}
+     * if the call stack was resolved without {@link ContextResolution.Options#RETAIN_CLASS_REFERENCES}.
+     */
+    private final Class<?>[] declaringClasses;
+
+    // Indexes of the most/least recent frames of particular kinds, or -1 if there are
+    // no such frames. These are computed once, while the frames are being collected.
+    private final int mostRecentReflectionIdx,               leastRecentReflectionIdx;
+    private final int mostRecentNonReflectionIdx,            leastRecentNonReflectionIdx;
+    private final int mostRecentNativeIdx,                   leastRecentNativeIdx;
+    private final int mostRecentNonNativeIdx,                leastRecentNonNativeIdx;
+    private final int mostRecentNonReflectionNonNativeIdx,   leastRecentNonReflectionNonNativeIdx;
 
-        if (callStack.isEmpty())
+    private FilteredContext(Collector collector) throws UnexpectedSetupException {
+        if (collector.size == 0)
             throw new UnexpectedSetupException(
                     "call stack cannot be empty");
 
-        if (callStack.size() > MAX_CALL_STACK_SIZE)
+        if (collector.size > MAX_CALL_STACK_SIZE)
             throw new UnexpectedSetupException(
                     "call stack cannot contain more than " + MAX_CALL_STACK_SIZE + " elements");
 
-        this.callStack = callStack;
+        callStack = collector.callStack;
+        size = collector.size;
+        declaringClasses = collector.declaringClasses;
+
+        mostRecentReflectionIdx              = collector.mostRecentReflectionIdx;
+        leastRecentReflectionIdx             = collector.leastRecentReflectionIdx;
+        mostRecentNonReflectionIdx           = collector.mostRecentNonReflectionIdx;
+        leastRecentNonReflectionIdx          = collector.leastRecentNonReflectionIdx;
+        mostRecentNativeIdx                  = collector.mostRecentNativeIdx;
+        leastRecentNativeIdx                 = collector.leastRecentNativeIdx;
+        mostRecentNonNativeIdx               = collector.mostRecentNonNativeIdx;
+        leastRecentNonNativeIdx              = collector.leastRecentNonNativeIdx;
+        mostRecentNonReflectionNonNativeIdx  = collector.mostRecentNonReflectionNonNativeIdx;
+        leastRecentNonReflectionNonNativeIdx = collector.leastRecentNonReflectionNonNativeIdx;
     }
 
     /**
@@ -65,7 +95,56 @@ public final class FilteredContext {
      * @return an <i>unmodifiable view</i> of the internal {@link StackTraceElement} storage.
      */
     public List<StackTraceElement> filteredCallStack() {
-        return Collections.unmodifiableList(callStack);
+        return Collections.unmodifiableList(Arrays.asList(callStack).subList(0, size));
+    }
+
+    /**
+     * @return the number of frames in the filtered call stack.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the frame at the specified position in the filtered call stack, without creating a list view of it.
+     *
+     * @param index position of the frame, counting from 0 (the most recent call).
+     *
+     * @return the frame at the specified position in the filtered call stack.
+     *
+     * @throws IndexOutOfBoundsException if {@code index} is negative, or is not less than {@link #size()}.
+     */
+    public StackTraceElement frame(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("index " + index + " out of bounds for size " + size);
+
+        return callStack[index];
+    }
+
+    boolean retainsDeclaringClasses() {
+        return declaringClasses != null;
+    }
+
+    /**
+     * @throws IllegalStateException if this context was resolved without
+     *                               {@link ContextResolution.Options#RETAIN_CLASS_REFERENCES}.
+     */
+    Class<?> declaringClass(int index) {
+        if (declaringClasses == null)
+            throw new IllegalStateException("class references were not retained");
+
+        if (index >= size)
+            throw new IndexOutOfBoundsException("index " + index + " out of bounds for size " + size);
+
+        return declaringClasses[index];
+    }
+
+    int mostRecentNonReflectionNonNativeCallIndex() {
+        return mostRecentNonReflectionNonNativeIdx;
+    }
+
+    private StackTraceElement frameOrNull(int index) {
+        return index == -1 ? null : callStack[index];
     }
 
     /**
@@ -80,7 +159,7 @@ public final class FilteredContext {
      *         storage, this method is <i>guaranteed</i> to <i>never</i> return {@code null}.
      */
     public StackTraceElement mostRecentCall() {
-        return callStack.get(0);
+        return callStack[0];
     }
 
     /**
@@ -103,9 +182,9 @@ public final class FilteredContext {
         if (criteria == null)
             throw new NullPointerException("criteria cannot be null");
 
-        for (StackTraceElement frame : callStack)
-            if (criteria.test(frame))
-                return frame;
+        for (int i = 0; i < size; i++)
+            if (criteria.test(callStack[i]))
+                return callStack[i];
 
         return null; // no frames matching the given criteria
     }
@@ -121,7 +200,7 @@ public final class FilteredContext {
      *         if it exists, or {@code null} if there are no such call frames in the backed storage.
      */
     public StackTraceElement mostRecentReflectionCall() {
-        return mostRecentCall(ContextResolution::isReflectionFrame);
+        return frameOrNull(mostRecentReflectionIdx);
     }
 
     /**
@@ -135,7 +214,7 @@ public final class FilteredContext {
      *         if it exists, or {@code null} if there are no such call frames in the backed storage.
      */
     public StackTraceElement mostRecentNonReflectionCall() {
-        return mostRecentCall(frame -> !ContextResolution.isReflectionFrame(frame));
+        return frameOrNull(mostRecentNonReflectionIdx);
     }
 
     /**
@@ -149,7 +228,7 @@ public final class FilteredContext {
      *         if it exists, or {@code null} if there are no such call frames in the backed storage.
      */
     public StackTraceElement mostRecentNativeCall() {
-        return mostRecentCall(StackTraceElement::isNativeMethod);
+        return frameOrNull(mostRecentNativeIdx);
     }
 
     /**
@@ -163,7 +242,7 @@ public final class FilteredContext {
      *         if it exists, or {@code null} if there are no such call frames in the backed storage.
      */
     public StackTraceElement mostRecentNonNativeCall() {
-        return mostRecentCall(frame -> !frame.isNativeMethod());
+        return frameOrNull(mostRecentNonNativeIdx);
     }
 
     /**
@@ -177,7 +256,7 @@ public final class FilteredContext {
      *         if it exists, or {@code null} if there are no such call frames in the backed storage.
      */
     public StackTraceElement mostRecentNonReflectionNonNativeCall() {
-        return mostRecentCall(frame -> !ContextResolution.isReflectionFrame(frame) && !frame.isNativeMethod());
+        return frameOrNull(mostRecentNonReflectionNonNativeIdx);
     }
 
     /**
@@ -192,7 +271,7 @@ public final class FilteredContext {
      *         storage, this method is <i>guaranteed</i> to <i>never</i> return {@code null}.
      */
     public StackTraceElement leastRecentCall() {
-        return callStack.get(callStack.size() - 1);
+        return callStack[size - 1];
     }
 
     /**
@@ -215,8 +294,8 @@ public final class FilteredContext {
         if (criteria == null)
             throw new NullPointerException("criteria cannot be null");
         
-        for (int i = callStack.size() - 1; i >= 0; i--) {
-            StackTraceElement frame = callStack.get(i);
+        for (int i = size - 1; i >= 0; i--) {
+            StackTraceElement frame = callStack[i];
             if (criteria.test(frame)) return frame;
         }
 
@@ -234,7 +313,7 @@ public final class FilteredContext {
      *         if it exists, or {@code null} if there are no such call frames in the backed storage.
      */
     public StackTraceElement leastRecentReflectionCall() {
-        return leastRecentCall(ContextResolution::isReflectionFrame);
+        return frameOrNull(leastRecentReflectionIdx);
     }
 
     /**
@@ -248,7 +327,7 @@ public final class FilteredContext {
      *         if it exists, or {@code null} if there are no such call frames in the backed storage.
      */
     public StackTraceElement leastRecentNonReflectionCall() {
-        return leastRecentCall(frame -> !ContextResolution.isReflectionFrame(frame));
+        return frameOrNull(leastRecentNonReflectionIdx);
     }
 
     /**
@@ -262,7 +341,7 @@ public final class FilteredContext {
      *         if it exists, or {@code null} if there are no such call frames in the backed storage.
      */
     public StackTraceElement leastRecentNativeCall() {
-        return leastRecentCall(StackTraceElement::isNativeMethod);
+        return frameOrNull(leastRecentNativeIdx);
     }
 
     /**
@@ -276,7 +355,7 @@ public final class FilteredContext {
      *         if it exists, or {@code null} if there are no such call frames in the backed storage.
      */
     public StackTraceElement leastRecentNonNativeCall() {
-        return leastRecentCall(frame -> !frame.isNativeMethod());
+        return frameOrNull(leastRecentNonNativeIdx);
     }
 
     /**
@@ -290,7 +369,7 @@ public final class FilteredContext {
      *         if it exists, or {@code null} if there are no such call frames in the backed storage.
      */
     public StackTraceElement leastRecentNonReflectionNonNativeCall() {
-        return leastRecentCall(frame -> !ContextResolution.isReflectionFrame(frame) && !frame.isNativeMethod());
+        return frameOrNull(leastRecentNonReflectionNonNativeIdx);
     }
 
     /**
@@ -300,7 +379,7 @@ public final class FilteredContext {
      *         {@code false} otherwise.
      */
     public boolean containsReflectionCalls() {
-        return mostRecentReflectionCall() != null;
+        return mostRecentReflectionIdx != -1;
     }
 
     /**
@@ -310,7 +389,83 @@ public final class FilteredContext {
      *         {@code false} otherwise.
      */
     public boolean containsNativeCalls() {
-        return mostRecentNativeCall() != null;
+        return mostRecentNativeIdx != -1;
+    }
+
+    /**
+     * Accumulates filtered frames during a call stack walk, and summarizes them on the fly,
+     * so that the resulting {@link FilteredContext} never has to rescan its frames.
+     */
+    static final class Collector {
+        private StackTraceElement[] callStack;
+        private Class<?>[] declaringClasses;
+        private int size;
+
+        private int mostRecentReflectionIdx              = -1, leastRecentReflectionIdx             = -1;
+        private int mostRecentNonReflectionIdx           = -1, leastRecentNonReflectionIdx          = -1;
+        private int mostRecentNativeIdx                  = -1, leastRecentNativeIdx                 = -1;
+        private int mostRecentNonNativeIdx               = -1, leastRecentNonNativeIdx              = -1;
+        private int mostRecentNonReflectionNonNativeIdx  = -1, leastRecentNonReflectionNonNativeIdx = -1;
+
+        /**
+         * @param expectedSize          the expected number of frames - a hint for the initial capacity.
+         * @param retainDeclaringClasses whether {@link #add} will be given the frames' declaring classes.
+         */
+        Collector(int expectedSize, boolean retainDeclaringClasses) {
+            int capacity = Math.max(1, Math.min(expectedSize, 16));
+            callStack = new StackTraceElement[capacity];
+            declaringClasses = retainDeclaringClasses ? new Class<?>[capacity] : null;
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean retainsDeclaringClasses() {
+            return declaringClasses != null;
+        }
+
+        void add(StackTraceElement frame, Class<?> declaringClass, boolean reflection) {
+            if (size == callStack.length) {
+                callStack = Arrays.copyOf(callStack, size * 2);
+
+                if (declaringClasses != null)
+                    declaringClasses = Arrays.copyOf(declaringClasses, size * 2);
+            }
+
+            int idx = size++;
+            callStack[idx] = frame;
+
+            if (declaringClasses != null)
+                declaringClasses[idx] = declaringClass;
+
+            boolean nativeMethod = frame.isNativeMethod();
+
+            if (reflection) {
+                if (mostRecentReflectionIdx == -1) mostRecentReflectionIdx = idx;
+                leastRecentReflectionIdx = idx;
+            } else {
+                if (mostRecentNonReflectionIdx == -1) mostRecentNonReflectionIdx = idx;
+                leastRecentNonReflectionIdx = idx;
+            }
+
+            if (nativeMethod) {
+                if (mostRecentNativeIdx == -1) mostRecentNativeIdx = idx;
+                leastRecentNativeIdx = idx;
+            } else {
+                if (mostRecentNonNativeIdx == -1) mostRecentNonNativeIdx = idx;
+                leastRecentNonNativeIdx = idx;
+            }
+
+            if (!reflection && !nativeMethod) {
+                if (mostRecentNonReflectionNonNativeIdx == -1) mostRecentNonReflectionNonNativeIdx = idx;
+                leastRecentNonReflectionNonNativeIdx = idx;
+            }
+        }
+
+        FilteredContext build() throws UnexpectedSetupException {
+            return new FilteredContext(this);
+        }
     }
 
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.api;
+
+import java.util.*;
+
+/**
+ * A set of arbitrary glob filters of format "fully.qualified.ClassName#methodName" compiled into a single
+ * matcher, so that a call frame can be tested against all of them in one pass over its characters.
+ * <p>
+ * All globs are merged into one trie, where "?" and "*" are edges like any other character. Matching is
+ * a simulation of the resulting automaton: the set of active trie nodes is advanced character by character,
+ * so globs that share a prefix (such as package names) are only ever compared against that prefix once,
+ * and the match is abandoned as soon as no glob can match anymore - which, for most call frames,
+ * happens within the first few characters.
+ * <p>
+ * The semantics of every glob are exactly those of {@link GlobMatcher}. Globs
+ * that {@link GlobMatcher} matches with a regular expression are not supported.
+ *
+ * @see GlobSet
+ */
+final class GlobAutomaton {
+
+    private static final int NO_NODE = -1;
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private final List<String> globs;
+
+    // Trie nodes, indexed by node id. The root node has id 0.
+    private final char[][] literalEdges;
+    private final int[][] literalTargets;
+    private final int[] anyCharTargets;
+    private final int[] starTargets;
+    private final boolean[] starNodes; // nodes reached via a '*' edge, which loop on any character
+    private final boolean[] accepting;
+
+    GlobAutomaton(List<String> globs) {
+        this.globs = globs;
+
+        List<Map<Character, Integer>> literalChildren = new ArrayList<>();
+        List<Integer> anyCharChildren = new ArrayList<>();
+        List<Integer> starChildren = new ArrayList<>();
+        List<Boolean> acceptingNodes = new ArrayList<>();
+        newNode(literalChildren, anyCharChildren, starChildren, acceptingNodes); // root
+
+        for (String glob : globs) {
+            int node = 0;
+
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                List<Integer> wildcardChildren = c == '*' ? starChildren : c == '?' ? anyCharChildren : null;
+
+                if (wildcardChildren == null) {
+                    Integer next = literalChildren.get(node).get(c);
+
+                    if (next == null) {
+                        next = newNode(literalChildren, anyCharChildren, starChildren, acceptingNodes);
+                        literalChildren.get(node).put(c, next);
+                    }
+
+                    node = next;
+                } else {
+                    int next = wildcardChildren.get(node);
+
+                    if (next == NO_NODE) {
+                        next = newNode(literalChildren, anyCharChildren, starChildren, acceptingNodes);
+                        wildcardChildren.set(node, next);
+                    }
+
+                    node = next;
+                }
+            }
+
+            acceptingNodes.set(node, true);
+        }
+
+        int nodes = literalChildren.size();
+        literalEdges = new char[nodes][];
+        literalTargets = new int[nodes][];
+        anyCharTargets = new int[nodes];
+        starTargets = new int[nodes];
+        starNodes = new boolean[nodes];
+        accepting = new boolean[nodes];
+
+        for (int node = 0; node < nodes; node++) {
+            // Sorted, so that edges can be looked up with a binary search.
+            Map<Character, Integer> children = new TreeMap<>(literalChildren.get(node));
+            literalEdges[node] = new char[children.size()];
+            literalTargets[node] = new int[children.size()];
+            int i = 0;
+
+            for (Map.Entry<Character, Integer> child : children.entrySet()) {
+                literalEdges[node][i] = child.getKey();
+                literalTargets[node][i] = child.getValue();
+                i++;
+            }
+
+            anyCharTargets[node] = anyCharChildren.get(node);
+            starTargets[node] = starChildren.get(node);
+            accepting[node] = acceptingNodes.get(node);
+
+            if (starTargets[node] != NO_NODE)
+                starNodes[starTargets[node]] = true;
+        }
+    }
+
+    private static int newNode(List<Map<Character, Integer>> literalChildren, List<Integer> anyCharChildren,
+                               List<Integer> starChildren, List<Boolean> acceptingNodes) {
+        literalChildren.add(new HashMap<>());
+        anyCharChildren.add(NO_NODE);
+        starChildren.add(NO_NODE);
+        acceptingNodes.add(false);
+
+        return literalChildren.size() - 1;
+    }
+
+    /**
+     * Checks if the call "className#methodName" matches at least one of the globs in this set.
+     */
+    boolean matchesAny(CharSequence className, CharSequence methodName) {
+        Scratch s = scratch.get();
+        s.ensureCapacity(literalEdges.length);
+        s.currentSize = 0;
+        s.nextGeneration();
+        addWithClosure(s, 0);
+
+        int classNameLen = className.length();
+        int textLen = classNameLen + 1 + methodName.length();
+
+        for (int t = 0; t < textLen; t++) {
+            char c = t < classNameLen ? className.charAt(t)
+                   : t == classNameLen ? '#' : methodName.charAt(t - classNameLen - 1);
+
+            if (Character.isSurrogate(c))
+                // '?' matches a whole code point rather than a char, which does not fit the char-by-char
+                // simulation. Names with supplementary characters are rare, so just check globs one by one.
+                return matchesAnyOneByOne(className, methodName);
+
+            boolean wildcard = !GlobMatcher.isLineTerminator(c);
+            int[] current = s.current;
+            int currentSize = s.currentSize;
+            s.swap();
+            s.currentSize = 0;
+            s.nextGeneration();
+
+            for (int i = 0; i < currentSize; i++) {
+                int node = current[i];
+                int literalIdx = Arrays.binarySearch(literalEdges[node], c);
+
+                if (literalIdx >= 0)
+                    addWithClosure(s, literalTargets[node][literalIdx]);
+
+                if (wildcard) {
+                    if (anyCharTargets[node] != NO_NODE)
+                        addWithClosure(s, anyCharTargets[node]);
+
+                    if (starNodes[node])
+                        addWithClosure(s, node); // a '*' consumes any number of characters
+                }
+            }
+
+            if (s.currentSize == 0)
+                return false; // no glob can match anymore
+        }
+
+        for (int i = 0; i < s.currentSize; i++)
+            if (accepting[s.current[i]])
+                return true;
+
+        return false;
+    }
+
+    private void addWithClosure(Scratch s, int node) {
+        // A '*' may also match an empty sequence, so whenever a node becomes
+        // active, the node its '*' edge leads to becomes active as well.
+        while (node != NO_NODE && s.marks[node] != s.generation) {
+            s.marks[node] = s.generation;
+            s.current[s.currentSize++] = node;
+            node = starTargets[node];
+        }
+    }
+
+    private boolean matchesAnyOneByOne(CharSequence className, CharSequence methodName) {
+        for (String glob : globs)
+            if (Utils.compileGlob(glob).matches(className, methodName))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Per-thread buffers for the automaton simulation, so that matching does not allocate.
+     */
+    private static final class Scratch {
+        private int[] current = new int[0];
+        private int[] next = new int[0];
+        private int currentSize;
+        private int[] marks = new int[0];
+        private int generation;
+
+        private void ensureCapacity(int nodes) {
+            if (marks.length < nodes) {
+                current = new int[nodes];
+                next = new int[nodes];
+                marks = new int[nodes];
+                generation = 0;
+            }
+        }
+
+        private void nextGeneration() {
+            if (++generation == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+        }
+
+        private void swap() {
+            int[] tmp = current;
+            current = next;
+            next = tmp;
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.api;
+
+import java.util.regex.Pattern;
+
+/**
+ * A compiled glob filter of format "fully.qualified.ClassName#methodName" (with "?" and "*" wildcards).
+ * <p>
+ * Call frames are matched against the class name and the method name directly, as if they were
+ * joined with a "#" character, but without actually concatenating them or using regular expressions.
+ * The semantics are exactly those of the regular expression produced by {@link Utils#globToRegex(String)}.
+ * Globs that contain other regular expression metacharacters (which that conversion passes through as is)
+ * are matched with the equivalent {@link Pattern} instead, so that they keep behaving exactly as before.
+ * So are globs that contain surrogate characters: regular expressions match text by code points, so a lone
+ * surrogate in a glob never matches a half of a surrogate pair in the text, which comparing chars cannot tell.
+ */
+final class GlobMatcher {
+
+    /**
+     * Characters that are not escaped by {@link Utils#globToRegex(String)}, and thus
+     * have a special meaning in the resulting regular expression.
+     */
+    private static final String REGEX_METACHARACTERS = "^$[](){}+|";
+
+    /**
+     * Set this system property to "regex" to match all globs with regular expressions.
+     */
+    private static final boolean FORCE_REGEX
+            = "regex".equalsIgnoreCase(System.getProperty("accesswarden.globEngine"));
+
+    private final char[] glob;
+
+    private final Pattern fallbackPattern;
+
+    private GlobMatcher(char[] glob, Pattern fallbackPattern) {
+        this.glob = glob;
+        this.fallbackPattern = fallbackPattern;
+    }
+
+    static GlobMatcher compile(String glob) {
+        if (glob == null)
+            throw new NullPointerException("glob cannot be null");
+
+        if (glob.isEmpty())
+            throw new IllegalArgumentException("glob cannot be empty");
+
+        if (FORCE_REGEX || containsRegexMetacharacters(glob) || containsSurrogates(glob))
+            return new GlobMatcher(null, Pattern.compile(Utils.globToRegex(glob)));
+        else
+            return new GlobMatcher(glob.toCharArray(), null);
+    }
+
+    private static boolean containsRegexMetacharacters(String glob) {
+        for (int i = 0; i < glob.length(); i++)
+            if (REGEX_METACHARACTERS.indexOf(glob.charAt(i)) != -1)
+                return true;
+
+        return false;
+    }
+
+    private static boolean containsSurrogates(String glob) {
+        for (int i = 0; i < glob.length(); i++)
+            if (Character.isSurrogate(glob.charAt(i)))
+                return true;
+
+        return false;
+    }
+
+    boolean isRegexFallback() {
+        return fallbackPattern != null;
+    }
+
+    /**
+     * Checks if the call "className#methodName" matches this glob.
+     */
+    boolean matches(CharSequence className, CharSequence methodName) {
+        if (fallbackPattern != null)
+            return fallbackPattern.matcher(className + "#" + methodName).matches();
+
+        int classNameLen = className.length();
+        int textLen = classNameLen + 1 + methodName.length();
+
+        int g = 0;         // position in glob
+        int t = 0;         // position in text
+        int starG = -1;    // position in glob of the last '*' seen
+        int starT = -1;    // position in text where that '*' began to match
+
+        // The glob contains no surrogates, so literals never match a half of a surrogate pair - and wildcards,
+        // like the regex '.' that they stand for, consume whole code points, so t never points at one either.
+        while (t < textLen) {
+            char c = charAt(className, methodName, classNameLen, t);
+
+            if (g < glob.length && glob[g] == '?' && !isLineTerminator(c)) {
+                t += codePointLength(className, methodName, classNameLen, textLen, t);
+                g++;
+            } else if (g < glob.length && glob[g] == '*') {
+                starG = g++;
+                starT = t;
+            } else if (g < glob.length && glob[g] == c && glob[g] != '?') {
+                g++;
+                t++;
+            } else if (starG != -1 && !isLineTerminator(charAt(className, methodName, classNameLen, starT))) {
+                // Let the last '*' consume one more code point, and retry from there.
+                g = starG + 1;
+                t = starT += codePointLength(className, methodName, classNameLen, textLen, starT);
+            } else
+                return false;
+        }
+
+        while (g < glob.length && glob[g] == '*')
+            g++;
+
+        return g == glob.length;
+    }
+
+    /**
+     * @return 2 if a valid surrogate pair starts at the specified position of the text, or 1 otherwise.
+     */
+    private static int codePointLength(CharSequence className, CharSequence methodName,
+                                       int classNameLen, int textLen, int i) {
+        return Character.isHighSurrogate(charAt(className, methodName, classNameLen, i)) && i + 1 < textLen
+                && Character.isLowSurrogate(charAt(className, methodName, classNameLen, i + 1)) ? 2 : 1;
+    }
+
+    private static char charAt(CharSequence className, CharSequence methodName, int classNameLen, int i) {
+        if (i < classNameLen)
+            return className.charAt(i);
+        else if (i == classNameLen)
+            return '#';
+        else
+            return methodName.charAt(i - classNameLen - 1);
+    }
+
+    /**
+     * Characters that the regex '.' (which '?' and '*' translate to) does not match.
+     */
+    static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.api;
+
+import java.util.*;
+
+/**
+ * A set of glob filters of format "fully.qualified.ClassName#methodName" compiled into a single matcher.
+ * <p>
+ * Globs are classified when the set is compiled, and each kind is matched with the cheapest suitable structure:
+ * <ul>
+ *     <li><i>exact</i> globs without any wildcards ("pkg.Class#method") are looked up in a hash map
+ *         keyed by class name and method name, in constant time;</li>
+ *     <li><i>prefix</i> globs ("pkg.*", "pkg.Class#update*") are looked up in a trie of their prefixes;</li>
+ *     <li><i>suffix</i> globs ("*#main") are looked up in a trie of their reversed suffixes;</li>
+ *     <li>all other globs are matched with a {@link GlobAutomaton}, and those that require regular expressions
+ *         (see {@link GlobMatcher}) - with a {@link GlobMatcher} each.</li>
+ * </ul>
+ * The semantics of every glob are exactly those of {@link GlobMatcher}.
+ */
+final class GlobSet {
+
+    private static final GlobSet EMPTY = new GlobSet(Collections.emptyList());
+
+    private final boolean empty;
+
+    /**
+     * Class name -> names of its methods matched by exact globs.
+     */
+    private final Map<String, Set<String>> exactSources = new HashMap<>();
+
+    private final LiteralTrie prefixes;
+
+    private final LiteralTrie suffixes;
+
+    private final GlobAutomaton generalGlobs;
+
+    private final List<GlobMatcher> fallbackMatchers = new ArrayList<>();
+
+    private GlobSet(List<String> globs) {
+        empty = globs.isEmpty();
+
+        List<String> prefixGlobs = new ArrayList<>();
+        List<String> reversedSuffixGlobs = new ArrayList<>();
+        List<String> generalGlobList = new ArrayList<>();
+
+        for (String glob : globs) {
+            if (Utils.compileGlob(glob).isRegexFallback()) {
+                fallbackMatchers.add(Utils.compileGlob(glob));
+                continue;
+            }
+
+            int wildcards = countWildcards(glob);
+
+            if (wildcards == 0)
+                addExactSource(glob);
+            else if (wildcards == 1 && glob.charAt(glob.length() - 1) == '*')
+                prefixGlobs.add(glob.substring(0, glob.length() - 1));
+            else if (wildcards == 1 && glob.charAt(0) == '*')
+                reversedSuffixGlobs.add(new StringBuilder(glob.substring(1)).reverse().toString());
+            else
+                generalGlobList.add(glob);
+        }
+
+        prefixes = prefixGlobs.isEmpty() ? null : new LiteralTrie(prefixGlobs);
+        suffixes = reversedSuffixGlobs.isEmpty() ? null : new LiteralTrie(reversedSuffixGlobs);
+        generalGlobs = generalGlobList.isEmpty() ? null : new GlobAutomaton(generalGlobList);
+    }
+
+    private static int countWildcards(String glob) {
+        int wildcards = 0;
+
+        for (int i = 0; i < glob.length(); i++)
+            if (glob.charAt(i) == '*' || glob.charAt(i) == '?')
+                wildcards++;
+
+        return wildcards;
+    }
+
+    private void addExactSource(String glob) {
+        // Class names and method names may themselves contain '#', so every '#' in
+        // the glob is a possible separator, each of which gives a separate candidate.
+        for (int i = glob.indexOf('#'); i != -1; i = glob.indexOf('#', i + 1))
+            exactSources.computeIfAbsent(glob.substring(0, i), k -> new HashSet<>()).add(glob.substring(i + 1));
+    }
+
+    static GlobSet compile(List<String> globs) {
+        if (globs == null)
+            throw new NullPointerException("globs cannot be null");
+
+        return globs.isEmpty() ? EMPTY : new GlobSet(globs);
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Checks if the call "className#methodName" matches at least one of the globs in this set.
+     */
+    boolean matchesAny(String className, String methodName) {
+        if (empty)
+            return false;
+
+        if (!exactSources.isEmpty()) {
+            Set<String> methodNames = exactSources.get(className);
+
+            if (methodNames != null && methodNames.contains(methodName))
+                return true;
+        }
+
+        if (prefixes != null && prefixes.matchesPrefix(className, methodName))
+            return true;
+
+        if (suffixes != null && suffixes.matchesSuffix(className, methodName))
+            return true;
+
+        if (generalGlobs != null && generalGlobs.matchesAny(className, methodName))
+            return true;
+
+        for (GlobMatcher fallbackMatcher : fallbackMatchers)
+            if (fallbackMatcher.matches(className, methodName))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * A trie of literal strings (without any wildcards).
+     */
+    private static final class LiteralTrie {
+        private final char[][] edges;
+        private final int[][] targets;
+        private final boolean[] terminal;
+
+        private LiteralTrie(List<String> literals) {
+            List<Map<Character, Integer>> children = new ArrayList<>();
+            List<Boolean> terminalNodes = new ArrayList<>();
+            children.add(new HashMap<>()); // root
+            terminalNodes.add(false);
+
+            for (String literal : literals) {
+                int node = 0;
+
+                for (int i = 0; i < literal.length(); i++) {
+                    Integer next = children.get(node).get(literal.charAt(i));
+
+                    if (next == null) {
+                        next = children.size();
+                        children.add(new HashMap<>());
+                        terminalNodes.add(false);
+                        children.get(node).put(literal.charAt(i), next);
+                    }
+
+                    node = next;
+                }
+
+                terminalNodes.set(node, true);
+            }
+
+            edges = new char[children.size()][];
+            targets = new int[children.size()][];
+            terminal = new boolean[children.size()];
+
+            for (int node = 0; node < children.size(); node++) {
+                // Sorted, so that edges can be looked up with a binary search.
+                Map<Character, Integer> sortedChildren = new TreeMap<>(children.get(node));
+                edges[node] = new char[sortedChildren.size()];
+                targets[node] = new int[sortedChildren.size()];
+                terminal[node] = terminalNodes.get(node);
+                int i = 0;
+
+                for (Map.Entry<Character, Integer> child : sortedChildren.entrySet()) {
+                    edges[node][i] = child.getKey();
+                    targets[node][i] = child.getValue();
+                    i++;
+                }
+            }
+        }
+
+        private int next(int node, char c) {
+            int idx = Arrays.binarySearch(edges[node], c);
+            return idx >= 0 ? targets[node][idx] : -1;
+        }
+
+        /**
+         * Checks if some "literal*" glob matches the call "className#methodName".
+         */
+        private boolean matchesPrefix(String className, String methodName) {
+            int classNameLen = className.length();
+            int textLen = classNameLen + 1 + methodName.length();
+            int lastLineTerminator = -2; // not computed yet
+            int node = 0;
+
+            for (int t = 0; ; t++) {
+                if (terminal[node]) {
+                    // The trailing '*' cannot match line terminators.
+                    if (lastLineTerminator == -2)
+                        lastLineTerminator = lastLineTerminator(className, methodName);
+
+                    if (lastLineTerminator < t)
+                        return true;
+                }
+
+                if (t == textLen)
+                    return false;
+
+                char c = t < classNameLen ? className.charAt(t)
+                       : t == classNameLen ? '#' : methodName.charAt(t - classNameLen - 1);
+
+                if ((node = next(node, c)) == -1)
+                    return false;
+            }
+        }
+
+        /**
+         * Checks if some "*literal" glob matches the call "className#methodName".
+         * This trie must be built of reversed literals.
+         */
+        private boolean matchesSuffix(String className, String methodName) {
+            int classNameLen = className.length();
+            int textLen = classNameLen + 1 + methodName.length();
+            int firstLineTerminator = -2; // not computed yet
+            int node = 0;
+
+            for (int t = textLen; ; t--) {
+                if (terminal[node]) {
+                    // The leading '*' cannot match line terminators.
+                    if (firstLineTerminator == -2)
+                        firstLineTerminator = firstLineTerminator(className, methodName);
+
+                    if (firstLineTerminator == -1 || firstLineTerminator >= t)
+                        return true;
+                }
+
+                if (t == 0)
+                    return false;
+
+                int i = t - 1;
+                char c = i < classNameLen ? className.charAt(i)
+                       : i == classNameLen ? '#' : methodName.charAt(i - classNameLen - 1);
+
+                if ((node = next(node, c)) == -1)
+                    return false;
+            }
+        }
+
+        private static int lastLineTerminator(String className, String methodName) {
+            for (int i = methodName.length() - 1; i >= 0; i--)
+                if (GlobMatcher.isLineTerminator(methodName.charAt(i)))
+                    return className.length() + 1 + i;
+
+            for (int i = className.length() - 1; i >= 0; i--)
+                if (GlobMatcher.isLineTerminator(className.charAt(i)))
+                    return i;
+
+            return -1;
+        }
+
+        private static int firstLineTerminator(String className, String methodName) {
+            for (int i = 0; i < className.length(); i++)
+                if (GlobMatcher.isLineTerminator(className.charAt(i)))
+                    return i;
+
+            for (int i = 0; i < methodName.length(); i++)
+                if (GlobMatcher.isLineTerminator(methodName.charAt(i)))
+                    return className.length() + 1 + i;
+
+            return -1;
+        }
+    }
+
+}
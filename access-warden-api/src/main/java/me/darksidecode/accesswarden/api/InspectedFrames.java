@@ -0,0 +1,150 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * The (filtered) frames that were inspected to check some call - which are all the verdict depends on.
+ * Used as the key of cached verdicts (see {@link VerdictCache}) and of denial breakers (see {@link DenialBreaker}).
+ * <p>
+ * Keys are looked up by a hash of the frames, and are then compared with them frame by frame,
+ * so a hash collision can never make one call stack pass for another one.
+ */
+final class InspectedFrames {
+
+    final int hash;
+
+    private final String[] classNames;
+    private final String[] methodNames;
+    private final boolean[] nativeMethods;
+
+    /**
+     * Weakly referenced, so that keys do not keep classes (and their loaders) from being unloaded.
+     * Only set when the frames were walked with class references retained.
+     */
+    private final WeakReference<?>[] declaringClasses;
+
+    private InspectedFrames(int hash, String[] classNames, String[] methodNames,
+                            boolean[] nativeMethods, WeakReference<?>[] declaringClasses) {
+        this.hash = hash;
+        this.classNames = classNames;
+        this.methodNames = methodNames;
+        this.nativeMethods = nativeMethods;
+        this.declaringClasses = declaringClasses;
+    }
+
+    static InspectedFrames of(FilteredContext ctx) {
+        int size = ctx.size();
+        boolean retainedClasses = ctx.retainsDeclaringClasses();
+
+        String[] classNames = new String[size];
+        String[] methodNames = new String[size];
+        boolean[] nativeMethods = new boolean[size];
+        WeakReference<?>[] declaringClasses = retainedClasses ? new WeakReference<?>[size] : null;
+
+        for (int i = 0; i < size; i++) {
+            StackTraceElement frame = ctx.frame(i);
+            classNames[i] = frame.getClassName();
+            methodNames[i] = frame.getMethodName();
+            nativeMethods[i] = frame.isNativeMethod();
+
+            if (retainedClasses)
+                declaringClasses[i] = new WeakReference<>(ctx.declaringClass(i));
+        }
+
+        return new InspectedFrames(hash(ctx), classNames, methodNames, nativeMethods, declaringClasses);
+    }
+
+    /**
+     * @return the key for the call stack consisting of just the specified frame.
+     */
+    static InspectedFrames of(StackWalker.StackFrame frame, boolean retainedClass) {
+        return new InspectedFrames(hash(frame, retainedClass),
+                new String[] { frame.getClassName() },
+                new String[] { frame.getMethodName() },
+                new boolean[] { frame.isNativeMethod() },
+                retainedClass ? new WeakReference<?>[] { new WeakReference<>(frame.getDeclaringClass()) } : null);
+    }
+
+    static int hash(FilteredContext ctx) {
+        boolean retainedClasses = ctx.retainsDeclaringClasses();
+        int hash = ctx.size();
+
+        for (int i = 0; i < ctx.size(); i++) {
+            StackTraceElement frame = ctx.frame(i);
+            hash = hash(hash, frame.getClassName(), frame.getMethodName(),
+                    retainedClasses ? ctx.declaringClass(i) : null);
+        }
+
+        return spread(hash);
+    }
+
+    static int hash(StackWalker.StackFrame frame, boolean retainedClass) {
+        return spread(hash(1, frame.getClassName(), frame.getMethodName(),
+                retainedClass ? frame.getDeclaringClass() : null));
+    }
+
+    private static int hash(int hash, String className, String methodName, Class<?> declaringClass) {
+        // String hash codes are cached, so this is cheap for the strings that StackWalker gives out.
+        hash = 31 * hash + className.hashCode();
+        hash = 31 * hash + methodName.hashCode();
+        return 31 * hash + System.identityHashCode(declaringClass);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @param hash the result of {@link #hash(FilteredContext)} for the specified call stack.
+     */
+    boolean matches(FilteredContext ctx, int hash) {
+        if (this.hash != hash || ctx.size() != classNames.length
+                || ctx.retainsDeclaringClasses() != (declaringClasses != null))
+            return false;
+
+        for (int i = 0; i < classNames.length; i++) {
+            StackTraceElement frame = ctx.frame(i);
+
+            if (!frameMatches(i, frame.getClassName(), frame.getMethodName(), frame.isNativeMethod(),
+                    declaringClasses != null ? ctx.declaringClass(i) : null))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param hash the result of {@link #hash(StackWalker.StackFrame, boolean)} for the specified frame.
+     */
+    boolean matches(StackWalker.StackFrame frame, boolean retainedClass, int hash) {
+        return this.hash == hash && classNames.length == 1 && retainedClass == (declaringClasses != null)
+                && frameMatches(0, frame.getClassName(), frame.getMethodName(), frame.isNativeMethod(),
+                                retainedClass ? frame.getDeclaringClass() : null);
+    }
+
+    private boolean frameMatches(int i, String className, String methodName,
+                                 boolean nativeMethod, Class<?> declaringClass) {
+        return nativeMethods[i] == nativeMethod
+                && classNames[i].equals(className)
+                && methodNames[i].equals(methodName)
+                && (declaringClasses == null || declaringClasses[i].get() == declaringClass);
+    }
+
+}
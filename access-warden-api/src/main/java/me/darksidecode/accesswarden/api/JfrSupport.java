@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * Emits the "AccessWarden.Check" ({@link CheckEvent}) and "AccessWarden.Denied" ({@link DeniedEvent}) JFR events.
+ * Both are disabled by default, and must be enabled in the recording settings, for example:
+ * <pre>
+ *     jcmd &lt;pid&gt; JFR.start settings=profile +AccessWarden.Check#enabled=true +AccessWarden.Denied#enabled=true
+ * </pre>
+ * (or with a custom .jfc file on older JDKs). Checks only create events while some recording is running,
+ * so when nothing is being recorded, the overhead is a read of a volatile field. If the JVM has no JFR
+ * at all (the "jdk.jfr" module is missing), no events are ever created.
+ * <p>
+ * While some recording is running, checker methods that the Access Warden Core module compiles policies into
+ * leave all checks to the generic checker (see {@link CompiledChecks#mustCheckGenerically()}), so that their
+ * checks are recorded as well.
+ */
+final class JfrSupport {
+
+    /**
+     * Whether some JFR recording is running.
+     */
+    static volatile boolean recording;
+
+    static {
+        try {
+            FlightRecorder.addListener(new FlightRecorderListener() {
+                @Override
+                public void recorderInitialized(FlightRecorder recorder) {
+                    updateRecording(recorder);
+                }
+
+                @Override
+                public void recordingStateChanged(Recording changed) {
+                    if (FlightRecorder.isInitialized())
+                        updateRecording(FlightRecorder.getFlightRecorder());
+                }
+            });
+        } catch (LinkageError | SecurityException ignored) {
+            // No JFR (or no permission to use it) - never record.
+        }
+    }
+
+    private JfrSupport() {}
+
+    private static void updateRecording(FlightRecorder recorder) {
+        recording = recorder.getRecordings().stream()
+                .anyMatch(running -> running.getState() == RecordingState.RUNNING);
+    }
+
+    /**
+     * @return a started check event, or {@code null} if nothing is being recorded.
+     */
+    static CheckEvent beginCheck(RestrictedCall.Configuration conf) {
+        if (!recording)
+            return null;
+
+        CheckEvent event = new CheckEvent();
+
+        if (!event.isEnabled())
+            return null;
+
+        event.policy = conf.policyId();
+        event.unboundedWalk = conf.contextResolutionDepth() == ContextResolution.UNLIMITED_DEPTH;
+        event.begin();
+
+        return event;
+    }
+
+    static void commitCheck(CheckEvent event) {
+        event.commit();
+    }
+
+    static void denied(String policyId, String reason) {
+        if (!recording)
+            return;
+
+        DeniedEvent event = new DeniedEvent();
+
+        if (event.shouldCommit()) {
+            event.policy = policyId;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+}
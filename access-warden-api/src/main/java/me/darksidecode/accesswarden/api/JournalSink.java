@@ -0,0 +1,280 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A {@link ViolationSink} that appends violations to a journal of fixed-layout binary records in memory-mapped
+ * files. Unlike formatting violations as text and logging them, this only takes a few memory writes per
+ * violation, so it keeps up with bursts of tens of thousands of violations per second.
+ * <p>
+ * The journal is a directory of segment files named "journal-&lt;sequence number&gt;.awj". When the current
+ * segment is full, the next one is created, and the oldest segments are deleted, so that at most the configured
+ * number of segments is kept. Each segment is self-contained, and consists of:
+ * <ul>
+ *     <li>a header: {@link #MAGIC} (int), {@link #VERSION} (int), and the time the segment was created at
+ *         in milliseconds since the epoch (long);</li>
+ *     <li>{@link #TAG_STRING} records: the tag (byte), the id of the string (int), the length of the string
+ *         in UTF-8 (unsigned short), and the string itself in UTF-8 (cut at the last whole character that fits,
+ *         if it is longer). Policy ids, class names and method names are interned, and get an id within the
+ *         segment the first time they are written to it;</li>
+ *     <li>{@link #TAG_EVENT} records of {@link #EVENT_SIZE} bytes each: the tag (byte), flags (byte, see
+ *         {@link #FLAG_DENIED}), two reserved bytes, the string ids of the policy id, the class name and
+ *         the method name of the offending frame (ints, 0 if unknown), the timestamp in milliseconds since
+ *         the epoch (long), and the thread id (long);</li>
+ *     <li>a zero byte ({@link #TAG_END}) after the last record, unless the segment is full.</li>
+ * </ul>
+ * All numbers are big-endian. The journal can be read offline with the JournalReader
+ * tool of the Access Warden Core module.
+ * <p>
+ * The no-arguments constructor (which is used when this class is named by the "accesswarden.auditSink" system
+ * property) takes the directory of the journal from the "accesswarden.journalDirectory" system property
+ * ("access-warden-journal" by default), the size of segments in bytes from "accesswarden.journalSegmentSize"
+ * (16 MiB by default), and the number of segments to keep from "accesswarden.journalSegments" (4 by default).
+ * <p>
+ * Instances are not thread-safe - which is fine for the {@link AuditLog}, as it delivers all violations
+ * from its background thread only (see {@link ViolationSink}).
+ */
+public final class JournalSink implements ViolationSink {
+
+    public static final String FILE_PREFIX = "journal-";
+
+    public static final String FILE_SUFFIX = ".awj";
+
+    public static final int MAGIC = 0x41574A4C; // "AWJL"
+
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 16;
+
+    public static final byte TAG_END = 0;
+
+    public static final byte TAG_STRING = 1;
+
+    public static final byte TAG_EVENT = 2;
+
+    public static final int EVENT_SIZE = 32;
+
+    public static final int FLAG_DENIED = 0b1;
+
+    private static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int DEFAULT_SEGMENTS = 4;
+
+    /**
+     * Enough for an event with three strings of the maximum length, so that any event fits into an empty segment.
+     */
+    private static final int MIN_SEGMENT_SIZE = 256 * 1024;
+
+    private static final int MAX_STRING_BYTES = 0xFFFF;
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    /**
+     * Paths of the segments that are kept, from the oldest to the current one.
+     */
+    private final Deque<Path> segments = new ArrayDeque<>();
+
+    /**
+     * String -> its id within the current segment.
+     */
+    private final Map<String, Integer> stringIds = new HashMap<>();
+
+    private long nextSequenceNumber;
+
+    private MappedByteBuffer segment;
+
+    public JournalSink() throws IOException {
+        this(Paths.get(System.getProperty("accesswarden.journalDirectory", "access-warden-journal")),
+                Integer.getInteger("accesswarden.journalSegmentSize", DEFAULT_SEGMENT_SIZE),
+                Integer.getInteger("accesswarden.journalSegments", DEFAULT_SEGMENTS));
+    }
+
+    /**
+     * @param directory the directory of the journal, created if it does not exist. Segments that are already
+     *                  there are kept (while there are not too many of them), and new ones are numbered after them.
+     * @param segmentSize the size of each segment, in bytes (at least 256 KiB).
+     * @param maxSegments the number of segments to keep.
+     *
+     * @throws IOException if the directory or the first segment could not be created.
+     */
+    public JournalSink(Path directory, int segmentSize, int maxSegments) throws IOException {
+        if (directory == null)
+            throw new NullPointerException("directory cannot be null");
+
+        if (segmentSize < MIN_SEGMENT_SIZE)
+            throw new IllegalArgumentException("segmentSize must be at least " + MIN_SEGMENT_SIZE);
+
+        if (maxSegments < 1)
+            throw new IllegalArgumentException("maxSegments must be positive");
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        Files.createDirectories(directory);
+        SortedMap<Long, Path> existingSegments = new TreeMap<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path file : files) {
+                long sequenceNumber = sequenceNumber(file);
+
+                if (sequenceNumber >= 0)
+                    existingSegments.put(sequenceNumber, file);
+            }
+        }
+
+        if (!existingSegments.isEmpty()) {
+            segments.addAll(existingSegments.values());
+            nextSequenceNumber = existingSegments.lastKey() + 1;
+        }
+
+        nextSegment();
+    }
+
+    /**
+     * @return the sequence number of the specified segment file, or -1 if it is not named like one.
+     */
+    public static long sequenceNumber(Path file) {
+        String name = file.getFileName().toString();
+
+        if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX))
+            return -1;
+
+        try {
+            return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void accept(Violation violation) throws IOException {
+        String policyId = violation.policyId();
+        StackTraceElement frame = violation.offendingFrame();
+        String className = frame == null ? null : frame.getClassName();
+        String methodName = frame == null ? null : frame.getMethodName();
+
+        // The strings and the event that refers to them must all go to the same segment.
+        // Leave a zero byte after the event to mark the end of the segment.
+        int maxSize = stringRecordSize(policyId) + stringRecordSize(className)
+                + stringRecordSize(methodName) + EVENT_SIZE + 1;
+
+        if (segment.remaining() < maxSize)
+            nextSegment();
+
+        int policyIdId = intern(policyId);
+        int classNameId = intern(className);
+        int methodNameId = intern(methodName);
+        int pos = segment.position();
+
+        // The tag goes last, so that a reader that maps the segment
+        // concurrently never mistakes a partial record for a complete one.
+        segment.put(pos + 1, violation.denied() ? (byte) FLAG_DENIED : 0);
+        segment.putInt(pos + 4, policyIdId);
+        segment.putInt(pos + 8, classNameId);
+        segment.putInt(pos + 12, methodNameId);
+        segment.putLong(pos + 16, violation.timestampMillis());
+        segment.putLong(pos + 24, violation.threadId());
+        segment.put(pos, TAG_EVENT);
+        segment.position(pos + EVENT_SIZE);
+    }
+
+    /**
+     * @return an upper bound of the size of the record that {@link #intern(String)} would write for the string.
+     */
+    private int stringRecordSize(String s) {
+        if (s == null || stringIds.containsKey(s))
+            return 0;
+
+        // Each char takes at most 3 bytes in UTF-8 (supplementary characters take 4 bytes per 2 chars).
+        return 1 + 4 + 2 + Math.min(s.length() * 3, MAX_STRING_BYTES);
+    }
+
+    /**
+     * @return the id of the specified string in the current segment (written to the segment if it is not there
+     *         yet), or 0 if the string is {@code null}.
+     */
+    private int intern(String s) {
+        if (s == null)
+            return 0;
+
+        Integer id = stringIds.get(s);
+
+        if (id != null)
+            return id;
+
+        id = stringIds.size() + 1;
+        stringIds.put(s, id);
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_STRING_BYTES);
+
+        // Never cut a character in half: back off to the first byte of the character that does not fit.
+        while (length < bytes.length && (bytes[length] & 0xC0) == 0x80)
+            length--;
+        int pos = segment.position();
+
+        segment.putInt(pos + 1, id);
+        segment.putShort(pos + 5, (short) length);
+        segment.position(pos + 7);
+        segment.put(bytes, 0, length);
+        segment.put(pos, TAG_STRING);
+
+        return id;
+    }
+
+    private void nextSegment() throws IOException {
+        if (segment != null)
+            segment.force();
+
+        while (segments.size() >= maxSegments)
+            Files.deleteIfExists(segments.removeFirst());
+
+        Path file = directory.resolve(String.format("%s%016d%s", FILE_PREFIX, nextSequenceNumber++, FILE_SUFFIX));
+
+        // The mapping stays valid after the channel is closed. Mapping beyond
+        // the end of the file grows it, and fills it with zeros (TAG_END).
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+
+        segments.addLast(file);
+        stringIds.clear();
+
+        segment.putInt(MAGIC);
+        segment.putInt(VERSION);
+        segment.putLong(System.currentTimeMillis());
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the checks of a single policy, kept in {@link LongAdder}s, so that threads that check
+ * calls concurrently do not contend on them. See {@link PolicyMetricsMBean} for details.
+ * <p>
+ * When the "accesswarden.metrics" system property is not set, no instances are created,
+ * and the only overhead is a check of a {@code null} field (or, with compiled checkers,
+ * of a static final field that the JIT folds).
+ */
+final class PolicyMetrics implements PolicyMetricsMBean {
+
+    static final boolean ENABLED = Boolean.getBoolean("accesswarden.metrics");
+
+    private static final String OBJECT_NAME_PREFIX = "me.darksidecode.accesswarden:type=PolicyMetrics,name=";
+
+    /**
+     * Policy id -> its metrics.
+     */
+    private static final ConcurrentMap<String, PolicyMetrics> ALL_METRICS = new ConcurrentHashMap<>();
+
+    private final String policyId;
+
+    private final LongAdder allowed = new LongAdder();
+
+    private final LongAdder denied = new LongAdder();
+
+    private final LongAdder checkNanos = new LongAdder();
+
+    /**
+     * Denial message -> the number of calls denied with it. There are only a few different messages.
+     */
+    private final ConcurrentMap<String, LongAdder> denialsByReason = new ConcurrentHashMap<>();
+
+    private PolicyMetrics(String policyId) {
+        this.policyId = policyId;
+    }
+
+    /**
+     * @return the metrics of the specified policy, created and published as an MBean on first use.
+     */
+    static PolicyMetrics of(String policyId) {
+        PolicyMetrics metrics = ALL_METRICS.get(policyId);
+
+        if (metrics != null)
+            return metrics;
+
+        return ALL_METRICS.computeIfAbsent(policyId, id -> {
+            PolicyMetrics newMetrics = new PolicyMetrics(id);
+
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        newMetrics, new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(id)));
+            } catch (JMException ex) {
+                // Still count calls, so that the metrics are available if the MBean is registered some other way.
+                System.err.println("[Access Warden] Failed to register metrics of policy " + id + ": " + ex);
+            }
+
+            return newMetrics;
+        });
+    }
+
+    void allowed(long nanos) {
+        allowed.increment();
+        checkNanos.add(nanos);
+    }
+
+    void denied(String reason, long nanos) {
+        denied.increment();
+        checkNanos.add(nanos);
+        reason = String.valueOf(reason);
+        LongAdder denials = denialsByReason.get(reason);
+
+        if (denials == null)
+            denials = denialsByReason.computeIfAbsent(reason, k -> new LongAdder());
+
+        denials.increment();
+    }
+
+    @Override
+    public String getPolicyId() {
+        return policyId;
+    }
+
+    @Override
+    public long getChecks() {
+        return allowed.sum() + denied.sum();
+    }
+
+    @Override
+    public long getAllowed() {
+        return allowed.sum();
+    }
+
+    @Override
+    public long getDenied() {
+        return denied.sum();
+    }
+
+    @Override
+    public Map<String, Long> getDenialsByReason() {
+        Map<String, Long> result = new TreeMap<>();
+        denialsByReason.forEach((reason, count) -> result.put(reason, count.sum()));
+        return result;
+    }
+
+    @Override
+    public long getTotalCheckNanos() {
+        return checkNanos.sum();
+    }
+
+    @Override
+    public long getAverageCheckNanos() {
+        long checks = getChecks();
+        return checks == 0 ? 0 : checkNanos.sum() / checks;
+    }
+
+}
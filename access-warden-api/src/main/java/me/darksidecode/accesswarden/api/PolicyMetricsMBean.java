@@ -0,0 +1,58 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import java.util.Map;
+
+/**
+ * Metrics of the checks of a single policy, published as a platform MBean named
+ * "me.darksidecode.accesswarden:type=PolicyMetrics,name=&lt;policy id&gt;" when the "accesswarden.metrics"
+ * system property is set to "true" (see {@link RestrictedCall.Configuration#policyId()}).
+ * <p>
+ * Calls of all configurations with the same policy id are counted together. Calls that are let
+ * through without a check (by a permit, by sampling, or in audit mode) are counted as allowed.
+ */
+public interface PolicyMetricsMBean {
+
+    String getPolicyId();
+
+    /**
+     * The number of calls that were allowed or denied.
+     */
+    long getChecks();
+
+    long getAllowed();
+
+    long getDenied();
+
+    /**
+     * The number of denied calls per message of the {@link SecurityException} they were denied with.
+     */
+    Map<String, Long> getDenialsByReason();
+
+    /**
+     * The total time spent on checking calls, in nanoseconds.
+     */
+    long getTotalCheckNanos();
+
+    /**
+     * The average time spent on checking a call, in nanoseconds, or 0 if no call has been checked yet.
+     */
+    long getAverageCheckNanos();
+
+}
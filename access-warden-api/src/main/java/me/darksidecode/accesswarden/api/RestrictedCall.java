@@ -20,8 +20,14 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Indicates that the method this annotation is put on should be protected with Access Warden.
@@ -102,6 +108,57 @@ public @interface RestrictedCall {
     String[] prohibitedSources() default {};
     String k_prohibitedSources = "prohibitedSources";
 
+    /**
+     * Whether permitted sources with a literal (wildcard-free) class name should only match the class
+     * with that name that is visible to the protected method's class loader, rather than any class with
+     * that name. Such classes are resolved on first use (and retried until they can be resolved), and the direct
+     * caller is then compared with them by identity, so that a same-named class from a different class loader
+     * cannot pass as a permitted source.
+     * <p>
+     * Permitted sources with wildcards in the class name are still matched by name.
+     * Only has effect if prohibitArbitraryInvocation is enabled.
+     *
+     * @see #permittedSources()
+     */
+    boolean strictClassIdentity() default false;
+    String k_strictClassIdentity = "strictClassIdentity";
+
+    /**
+     * Whether to remember the verdicts (allowed/denied) for the call stacks this method is invoked from,
+     * so that repeated calls from the same place are not checked against the rules over and over again.
+     * <p>
+     * The cache is bounded: its size can be set with the "accesswarden.verdictCacheSize" system property
+     * (256 entries by default), and entries that have not been used recently are evicted when it is full.
+     */
+    boolean cacheVerdicts() default false;
+    String k_cacheVerdicts = "cacheVerdicts";
+
+    /**
+     * Whether to only check a sample of the calls to this method, trading protection for performance: each thread
+     * checks its first calls (1000 by default, see the "accesswarden.samplingWarmup" system property), and then only
+     * about one in K randomly chosen calls, where K adapts so that checks of this method take at most a particular
+     * fraction of the time (0.01, that is 1% of a CPU, by default - see the "accesswarden.samplingBudget" system
+     * property). Calls that are not checked are let through, so only use this for methods that are called so often
+     * that the checks themselves become a problem, and where deterring unwanted calls is enough.
+     * <p>
+     * Sampling can also be enabled for all methods at once, with the "accesswarden.sampleChecks" system property.
+     * Policies that enable sampling themselves are never compiled into specialized checker methods (see the
+     * "accesswarden.compileCheckers" transformation system property), and checker methods that other policies
+     * are compiled into leave all checks to the generic checker while sampling is enabled for all methods.
+     */
+    boolean sampleChecks() default false;
+    String k_sampleChecks = "sampleChecks";
+
+    /**
+     * Whether to only report calls that violate this policy instead of denying them, which is useful to roll
+     * new policies out safely. Violations are delivered to a pluggable sink asynchronously, without blocking
+     * the calling thread - see {@link AuditLog} for details.
+     * <p>
+     * Audit mode can also be enabled for all methods at once, with the "accesswarden.auditOnly" system property.
+     */
+    boolean auditOnly() default false;
+    String k_auditOnly = "auditOnly";
+
     /**
      * Wraps up the parameters of {@link RestrictedCall} in a convenient
      * method with extra configuration validation.
@@ -122,8 +179,43 @@ public @interface RestrictedCall {
         private boolean      prohibitArbitraryInvocation;
         private List<String> permittedSources;
         private List<String> prohibitedSources;
+        private boolean      strictClassIdentity;
+        private ClassLoader  classLoader;
+        private boolean      cacheVerdicts;
+        private boolean      sampleChecks;
+        private boolean      auditOnly;
+        private String       policyId;
+
+        private int     contextResolutionOptions;
+        private int     contextResolutionDepth;
+        private boolean directCallerOnly;
+
+        // Hash of the rules (see hasSameRules), computed once, when the configuration is built.
+        private int rulesHash;
+
+        // Compiled from the lists above once, when the configuration is built.
+        List<GlobMatcher> exactExpectedCallStackMatchers;
+        GlobSet           permittedSourcesMatcher;
+        GlobSet           prohibitedSourcesMatcher;
 
-        private int contextResolutionOptions;
+        // Only used with strictClassIdentity: permitted sources whose class name contains wildcards,
+        // and those with a literal class name, grouped by that name (resolved to classes on demand).
+        GlobSet                   classUnboundPermittedSourcesMatcher;
+        private Map<String, GlobSet> classBoundPermittedSources;
+        private volatile Map<Class<?>, GlobSet> resolvedPermittedClasses = Collections.emptyMap();
+        private Set<String> reportedUnresolvedClasses;
+
+        // Only set when cacheVerdicts is enabled.
+        VerdictCache verdictCache;
+
+        // Only set when sampling is enabled, with sampleChecks or the "accesswarden.sampleChecks" system property.
+        CheckSampler sampler;
+
+        // Only set when the "accesswarden.denialBreaker" system property is set, and calls can be denied at all.
+        DenialBreaker denialBreaker;
+
+        // Only set when the "accesswarden.metrics" system property is set, and the configuration has a policyId.
+        PolicyMetrics metrics;
 
         private Configuration() {}
 
@@ -147,6 +239,29 @@ public @interface RestrictedCall {
             return contextResolutionOptions;
         }
 
+        /**
+         * The number of (filtered) call stack frames that must be resolved in order
+         * to check calls against this configuration, or {@link ContextResolution#UNLIMITED_DEPTH}
+         * if the entire call stack has to be inspected.
+         *
+         * @see ContextResolution#resolve(int, int)
+         */
+        public int contextResolutionDepth() {
+            return contextResolutionDepth;
+        }
+
+        /**
+         * Whether the only thing that matters for this configuration is the direct caller
+         * (the most recent non-reflection non-native call) - which is the case when only
+         * prohibitArbitraryInvocation (with permittedSources) is set. Calls against such
+         * configurations can be checked without resolving the whole call stack.
+         *
+         * @see ContextResolution#ensureCallPermitted(int, Configuration)
+         */
+        public boolean isDirectCallerOnly() {
+            return directCallerOnly;
+        }
+
         public static Builder newBuilder() {
             return new Builder();
         }
@@ -159,6 +274,156 @@ public @interface RestrictedCall {
             return prohibitedSources;
         }
 
+        public boolean strictClassIdentity() {
+            return strictClassIdentity;
+        }
+
+        /**
+         * The class loader that literal class names of permitted sources are resolved with when
+         * strictClassIdentity is enabled, or {@code null} to use the system class loader.
+         */
+        public ClassLoader classLoader() {
+            return classLoader;
+        }
+
+        public boolean cacheVerdicts() {
+            return cacheVerdicts;
+        }
+
+        public boolean sampleChecks() {
+            return sampleChecks;
+        }
+
+        public boolean auditOnly() {
+            return auditOnly;
+        }
+
+        /**
+         * An identifier of the policy that is reported along with its violations, or {@code null} if it has none.
+         * The Access Warden Core module sets it to the protected method, in format "pkg.ClassName#methodName(descriptor)".
+         */
+        public String policyId() {
+            return policyId;
+        }
+
+        /**
+         * Checks if violations of this configuration are reported rather than denied, either because of
+         * auditOnly, or because audit mode is enabled for all configurations.
+         */
+        boolean isAuditing() {
+            return auditOnly || AuditLog.AUDIT_ALL;
+        }
+
+        /**
+         * Checks if no call that violates this configuration is ever let through - that is,
+         * neither sampling, nor audit mode is enabled.
+         */
+        boolean enforcesEveryCall() {
+            return sampler == null && !isAuditing();
+        }
+
+        /**
+         * The current average number of calls per checked call, or 1 if sampling is disabled (see
+         * {@link RestrictedCall#sampleChecks()}). This does not account for the warmup of each thread.
+         */
+        public int samplingInterval() {
+            return sampler == null ? 1 : sampler.interval();
+        }
+
+        /**
+         * The number of calls whose verdict was taken from the verdict cache, or 0 if cacheVerdicts is disabled.
+         */
+        public long verdictCacheHits() {
+            return verdictCache == null ? 0 : verdictCache.hits();
+        }
+
+        /**
+         * The number of calls whose verdict was not found in the verdict cache (and thus had to be computed),
+         * or 0 if cacheVerdicts is disabled.
+         */
+        public long verdictCacheMisses() {
+            return verdictCache == null ? 0 : verdictCache.misses();
+        }
+
+        /**
+         * The number of times the denial breaker of this configuration tripped for some call stack, or 0 if denial
+         * breakers are disabled (see {@link ContextResolution#ensureCallPermitted(int, Configuration)}).
+         */
+        public long denialBreakerTrips() {
+            return denialBreaker == null ? 0 : denialBreaker.trips();
+        }
+
+        /**
+         * The number of calls that were denied by a tripped denial breaker of this configuration without being
+         * checked, or 0 if denial breakers are disabled (see {@link #denialBreakerTrips()}).
+         */
+        public long denialBreakerRejections() {
+            return denialBreaker == null ? 0 : denialBreaker.rejections();
+        }
+
+        /**
+         * Checks if the specified configuration enforces exactly the same rules as this one. Verdict caching
+         * is not a rule, so it does not matter - and neither does the class loader without strictClassIdentity.
+         */
+        boolean hasSameRules(Configuration other) {
+            return this == other || (rulesHash == other.rulesHash
+                    && prohibitReflectionTraces == other.prohibitReflectionTraces
+                    && prohibitNativeTraces == other.prohibitNativeTraces
+                    && prohibitArbitraryInvocation == other.prohibitArbitraryInvocation
+                    && strictClassIdentity == other.strictClassIdentity
+                    && (!strictClassIdentity || classLoader == other.classLoader)
+                    && exactExpectedCallStack.equals(other.exactExpectedCallStack)
+                    && permittedSources.equals(other.permittedSources)
+                    && prohibitedSources.equals(other.prohibitedSources));
+        }
+
+        /**
+         * @return the permitted sources with the literal class name of the specified class, if that name
+         *         refers to exactly this class - or {@code null} if there are no such sources.
+         * <p>
+         * Classes are resolved lazily rather than when the configuration is built, because configurations
+         * are usually built while the protected method's class is being initialized, when not all of the
+         * permitted classes may be loadable yet. For the same reason, only the classes that have been resolved
+         * are remembered: a class that cannot be resolved yet is tried again whenever a frame of a class with
+         * its name is checked, and its sources are not permitted until then.
+         */
+        GlobSet permittedSourcesOf(Class<?> declaringClass) {
+            GlobSet sources = resolvedPermittedClasses.get(declaringClass);
+
+            if (sources != null)
+                return sources;
+
+            String className = declaringClass.getName();
+            sources = classBoundPermittedSources.get(className);
+
+            if (sources == null)
+                return null;
+
+            Class<?> permittedClass;
+
+            try {
+                permittedClass = Class.forName(className, false,
+                        classLoader != null ? classLoader : ClassLoader.getSystemClassLoader());
+            } catch (ClassNotFoundException | LinkageError ex) {
+                if (reportedUnresolvedClasses.add(className))
+                    System.err.println("[Access Warden] Cannot resolve permitted class " + className
+                            + " (sources with its name are not permitted until it can be resolved): " + ex);
+
+                return null;
+            }
+
+            synchronized (this) {
+                if (!resolvedPermittedClasses.containsKey(permittedClass)) {
+                    Map<Class<?>, GlobSet> resolved = new HashMap<>(resolvedPermittedClasses);
+                    resolved.put(permittedClass, sources);
+                    resolvedPermittedClasses = resolved;
+                }
+            }
+
+            // A class with the same name, but not the one that the name refers to, is not permitted.
+            return permittedClass == declaringClass ? sources : null;
+        }
+
         public static final class Builder {
             private final Configuration target;
 
@@ -174,7 +439,28 @@ public @interface RestrictedCall {
             private void validateAndCompleteTarget() throws UnexpectedSetupException {
                 completeMissing();
                 ensureConfigurationNotContradictory();
+                precompileGlobs();
                 calculateResolutionOptions();
+                calculateResolutionDepth();
+                target.directCallerOnly = target.exactExpectedCallStack.isEmpty()
+                        && target.prohibitArbitraryInvocation && target.contextResolutionDepth == 1;
+
+                if (target.cacheVerdicts)
+                    target.verdictCache = new VerdictCache();
+
+                if (target.sampleChecks || CheckSampler.SAMPLE_ALL_CHECKS)
+                    target.sampler = new CheckSampler();
+
+                if (DenialBreaker.ENABLED && !target.isAuditing())
+                    target.denialBreaker = new DenialBreaker();
+
+                if (PolicyMetrics.ENABLED && target.policyId != null)
+                    target.metrics = PolicyMetrics.of(target.policyId);
+
+                target.rulesHash = Objects.hash(target.exactExpectedCallStack, target.prohibitReflectionTraces,
+                        target.prohibitNativeTraces, target.prohibitArbitraryInvocation, target.permittedSources,
+                        target.prohibitedSources, target.strictClassIdentity,
+                        target.strictClassIdentity ? System.identityHashCode(target.classLoader) : 0);
             }
 
             private void completeMissing() throws UnexpectedSetupException {
@@ -228,6 +514,84 @@ public @interface RestrictedCall {
                             "whitelist will be ignored, and all calls will be allowed by default (TIP: " +
                             "enable prohibitArbitraryInvocation for the whitelist to work, or populate " +
                             "prohibitedSources with these elements to use a blacklist instead)");
+
+                if (target.strictClassIdentity && !target.prohibitArbitraryInvocation)
+                    throw new UnexpectedSetupException(
+                            "contradictory configuration: strictClassIdentity is set to true, but " +
+                            "prohibitArbitraryInvocation is set to false - there are no permitted sources " +
+                            "to resolve (TIP: enable prohibitArbitraryInvocation and populate permittedSources, " +
+                            "or disable strictClassIdentity)");
+            }
+
+            private void precompileGlobs() throws UnexpectedSetupException {
+                // Compile all patterns once now rather than on the first checks. This also
+                // reports malformed patterns right away instead of failing the checks later.
+                target.exactExpectedCallStackMatchers
+                        = precompileGlobs(target.exactExpectedCallStack, "exactExpectedCallStack");
+                precompileGlobs(target.permittedSources, "permittedSources");
+                precompileGlobs(target.prohibitedSources, "prohibitedSources");
+
+                // Whitelists and blacklists are only ever checked as a whole, so each of them is compiled
+                // into a single matcher that checks a call frame against all of the list's globs at once.
+                target.permittedSourcesMatcher = GlobSet.compile(target.permittedSources);
+                target.prohibitedSourcesMatcher = GlobSet.compile(target.prohibitedSources);
+
+                if (target.strictClassIdentity)
+                    splitPermittedSourcesByClass();
+            }
+
+            private void splitPermittedSourcesByClass() {
+                List<String> classUnboundSources = new ArrayList<>();
+                Map<String, List<String>> classBoundSources = new HashMap<>();
+
+                for (String glob : target.permittedSources) {
+                    String className = literalClassName(glob);
+
+                    if (className == null)
+                        classUnboundSources.add(glob);
+                    else
+                        classBoundSources.computeIfAbsent(className, k -> new ArrayList<>()).add(glob);
+                }
+
+                target.classUnboundPermittedSourcesMatcher = GlobSet.compile(classUnboundSources);
+                target.classBoundPermittedSources = new HashMap<>();
+                target.reportedUnresolvedClasses = ConcurrentHashMap.newKeySet();
+
+                for (Map.Entry<String, List<String>> sources : classBoundSources.entrySet())
+                    target.classBoundPermittedSources.put(sources.getKey(), GlobSet.compile(sources.getValue()));
+            }
+
+            /**
+             * @return the class name part of the given glob (up to the first "#"), or {@code null}
+             *         if it is not a literal class name (contains wildcards or regex metacharacters).
+             */
+            private static String literalClassName(String glob) {
+                int separator = glob.indexOf('#');
+
+                if (separator <= 0 || Utils.compileGlob(glob).isRegexFallback())
+                    return null;
+
+                for (int i = 0; i < separator; i++)
+                    if (glob.charAt(i) == '*' || glob.charAt(i) == '?')
+                        return null;
+
+                return glob.substring(0, separator);
+            }
+
+            private static List<GlobMatcher> precompileGlobs(List<String> globs,
+                                                             String listName) throws UnexpectedSetupException {
+                List<GlobMatcher> matchers = new ArrayList<>(globs.size());
+
+                for (String glob : globs) {
+                    try {
+                        matchers.add(Utils.compileGlob(glob));
+                    } catch (RuntimeException ex) {
+                        throw new UnexpectedSetupException(
+                                "the " + listName + " list contains an invalid pattern '" + glob + "': " + ex.getMessage());
+                    }
+                }
+
+                return matchers;
             }
 
             private void calculateResolutionOptions() {
@@ -240,6 +604,23 @@ public @interface RestrictedCall {
 
                 if (target.exactExpectedCallStack.isEmpty() && !target.prohibitNativeTraces)
                     target.contextResolutionOptions |= ContextResolution.Options.FILTER_NATIVE_FRAMES;
+
+                if (target.strictClassIdentity)
+                    target.contextResolutionOptions |= ContextResolution.Options.RETAIN_CLASS_REFERENCES;
+            }
+
+            private void calculateResolutionDepth() {
+                if (!target.exactExpectedCallStack.isEmpty())
+                    // One extra frame is enough to tell that the actual call stack is longer than expected.
+                    target.contextResolutionDepth = target.exactExpectedCallStack.size() + 1;
+                else if (target.prohibitReflectionTraces
+                        || target.prohibitNativeTraces
+                        || !target.prohibitedSources.isEmpty())
+                    target.contextResolutionDepth = ContextResolution.UNLIMITED_DEPTH;
+                else
+                    // Reflection and native frames are filtered out in this case, so the most recent
+                    // frame is exactly the direct caller that prohibitArbitraryInvocation is interested in.
+                    target.contextResolutionDepth = 1;
             }
 
             public Builder exactExpectedCallStack(List<String> exactExpectedCallStack) {
@@ -271,6 +652,36 @@ public @interface RestrictedCall {
                 target.prohibitedSources = prohibitedSources;
                 return this;
             }
+
+            public Builder strictClassIdentity(boolean strictClassIdentity) {
+                target.strictClassIdentity = strictClassIdentity;
+                return this;
+            }
+
+            public Builder classLoader(ClassLoader classLoader) {
+                target.classLoader = classLoader;
+                return this;
+            }
+
+            public Builder cacheVerdicts(boolean cacheVerdicts) {
+                target.cacheVerdicts = cacheVerdicts;
+                return this;
+            }
+
+            public Builder sampleChecks(boolean sampleChecks) {
+                target.sampleChecks = sampleChecks;
+                return this;
+            }
+
+            public Builder auditOnly(boolean auditOnly) {
+                target.auditOnly = auditOnly;
+                return this;
+            }
+
+            public Builder policyId(String policyId) {
+                target.policyId = policyId;
+                return this;
+            }
         }
     }
 
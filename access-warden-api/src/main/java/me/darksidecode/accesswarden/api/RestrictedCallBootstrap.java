@@ -0,0 +1,135 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.api;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The bootstrap method for {@code invokedynamic} checks that the Access Warden Core module inserts into
+ * protected methods (when the "accesswarden.indyCheckers" system property is set to "true" during
+ * transformation) instead of calls to checker methods of a generated class.
+ * <p>
+ * The policy is passed to the bootstrap method as static arguments. It is built into a
+ * {@link RestrictedCall.Configuration} once, when the call site is linked, and bound to a
+ * {@link ConstantCallSite} along with the resolution options, so the JIT can treat both as constants.
+ * <p>
+ * Normally, you should not use this class yourself.
+ * It is intended for internal use by other Access Warden modules.
+ */
+public final class RestrictedCallBootstrap {
+
+    // Bits of the "flags" static argument.
+    public static final int PROHIBIT_REFLECTION_TRACES    = 0b1;
+    public static final int PROHIBIT_NATIVE_TRACES        = 0b10;
+    public static final int PROHIBIT_ARBITRARY_INVOCATION = 0b100;
+    public static final int STRICT_CLASS_IDENTITY         = 0b1000;
+    public static final int CACHE_VERDICTS                = 0b10000;
+    public static final int SAMPLE_CHECKS                 = 0b100000;
+    public static final int AUDIT_ONLY                    = 0b1000000;
+
+    private static final MethodHandle ENSURE_CALL_PERMITTED;
+
+    private static final MethodHandle RETHROW_UNEXPECTED_SETUP;
+
+    private static final MethodHandle DENY;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+            ENSURE_CALL_PERMITTED = lookup.findStatic(ContextResolution.class, "ensureCallPermitted",
+                    MethodType.methodType(void.class, int.class, RestrictedCall.Configuration.class));
+            RETHROW_UNEXPECTED_SETUP = lookup.findStatic(RestrictedCallBootstrap.class, "rethrowUnexpectedSetup",
+                    MethodType.methodType(void.class, UnexpectedSetupException.class));
+            DENY = lookup.findStatic(RestrictedCallBootstrap.class, "deny",
+                    MethodType.methodType(void.class, String.class));
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private RestrictedCallBootstrap() {}
+
+    /**
+     * Links a check of the policy described by the static arguments.
+     *
+     * @param caller the lookup of the class that declares the protected method.
+     * @param name ignored.
+     * @param type must be {@code ()V}.
+     * @param flags the boolean options of the policy, see the constants of this class.
+     * @param exactExpectedCallStackSize the number of exactExpectedCallStack elements at the start of {@code globs}.
+     * @param permittedSourcesSize the number of permittedSources elements that follow them in {@code globs}.
+     * @param policyId the id of the policy, see {@link RestrictedCall.Configuration#policyId()}.
+     * @param globs elements of exactExpectedCallStack, permittedSources, and prohibitedSources, in this order.
+     *
+     * @return a constant call site bound to the check.
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type, int flags,
+                                     int exactExpectedCallStackSize, int permittedSourcesSize,
+                                     String policyId, String... globs) {
+        if (!type.equals(MethodType.methodType(void.class)))
+            throw new IllegalArgumentException("unexpected call site type: " + type);
+
+        List<String> globList = Arrays.asList(globs);
+        int permittedSourcesEnd = exactExpectedCallStackSize + permittedSourcesSize;
+        RestrictedCall.Configuration conf;
+
+        try {
+            conf = RestrictedCall.Configuration
+                    .newBuilder()
+                        .exactExpectedCallStack     (globList.subList(0, exactExpectedCallStackSize))
+                        .prohibitReflectionTraces   ((flags & PROHIBIT_REFLECTION_TRACES   ) != 0)
+                        .prohibitNativeTraces       ((flags & PROHIBIT_NATIVE_TRACES       ) != 0)
+                        .prohibitArbitraryInvocation((flags & PROHIBIT_ARBITRARY_INVOCATION) != 0)
+                        .permittedSources           (globList.subList(exactExpectedCallStackSize, permittedSourcesEnd))
+                        .prohibitedSources          (globList.subList(permittedSourcesEnd, globList.size()))
+                        .strictClassIdentity        ((flags & STRICT_CLASS_IDENTITY        ) != 0)
+                        .classLoader                (caller.lookupClass().getClassLoader())
+                        .cacheVerdicts              ((flags & CACHE_VERDICTS               ) != 0)
+                        .sampleChecks               ((flags & SAMPLE_CHECKS                ) != 0)
+                        .auditOnly                  ((flags & AUDIT_ONLY                   ) != 0)
+                        .policyId                   (policyId)
+                    .build();
+        } catch (UnexpectedSetupException ex) {
+            // Deny all calls, just like generic checkers would do with such a configuration.
+            return new ConstantCallSite(MethodHandles.insertArguments(DENY, 0, "unexpected setup: " + ex.getMessage()));
+        }
+
+        // Method handle invocations do not add frames visible to context resolution, so (unlike
+        // with checker methods) the protected method itself is the caller of ContextResolution.
+        MethodHandle check = MethodHandles.insertArguments(
+                ENSURE_CALL_PERMITTED, 0, conf.contextResolutionOptions(), conf);
+
+        return new ConstantCallSite(MethodHandles.catchException(
+                check, UnexpectedSetupException.class, RETHROW_UNEXPECTED_SETUP));
+    }
+
+    private static void rethrowUnexpectedSetup(UnexpectedSetupException ex) {
+        throw new SecurityException("unexpected setup: " + ex.getMessage());
+    }
+
+    private static void deny(String message) {
+        throw new SecurityException(message);
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+/**
+ * A {@link SecurityException} that does not capture the stack trace, thrown to deny calls instead of plain
+ * {@link SecurityException}s if the "accesswarden.stacklessDenials" system property is set to "true".
+ * <p>
+ * Capturing the stack trace is the most expensive part of throwing an exception, and the call stack has already
+ * been walked by the check anyway - so this keeps the cost of denied calls close to that of permitted ones,
+ * even when some code hammers a protected method. Since the exceptions then tell nothing about where the calls
+ * came from, denials are reported to the {@link AuditLog} (as if "accesswarden.reportDenials" was set as well).
+ * The offending frame is taken from what the check has already walked, so reporting does not walk the stack again
+ * (except with checker methods that the Access Warden Core module compiles policies into).
+ * <p>
+ * A new (but cheap) instance is thrown for each denial: sharing preallocated instances is not safe, as anyone
+ * who catches one could change it for everyone else with {@link #initCause(Throwable)} or
+ * {@link #addSuppressed(Throwable)}.
+ */
+final class StacklessSecurityException extends SecurityException {
+
+    static final boolean ENABLED = Boolean.getBoolean("accesswarden.stacklessDenials");
+
+    private static final long serialVersionUID = 4383425826562004946L;
+
+    /**
+     * The direct caller of the protected method, or {@code null} if it is unknown.
+     */
+    final transient StackTraceElement offendingFrame;
+
+    private StacklessSecurityException(String message, StackTraceElement offendingFrame) {
+        super(message);
+        this.offendingFrame = offendingFrame;
+    }
+
+    /**
+     * @return the exception to deny a call with.
+     */
+    static SecurityException denial(String message) {
+        return ENABLED ? new StacklessSecurityException(message, null) : new SecurityException(message);
+    }
+
+    /**
+     * @param ctx the call stack the call was denied for.
+     *
+     * @return the exception to deny a call with.
+     */
+    static SecurityException denial(String message, FilteredContext ctx) {
+        if (!ENABLED)
+            return new SecurityException(message);
+
+        StackTraceElement directCaller = ctx.mostRecentNonReflectionNonNativeCall();
+
+        return new StacklessSecurityException(message, directCaller != null ? directCaller : ctx.mostRecentCall());
+    }
+
+    /**
+     * @param directCaller the direct caller the call was denied for.
+     *
+     * @return the exception to deny a call with.
+     */
+    static SecurityException denial(String message, StackWalker.StackFrame directCaller) {
+        return ENABLED ? new StacklessSecurityException(message, directCaller.toStackTraceElement())
+                       : new SecurityException(message);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
+}
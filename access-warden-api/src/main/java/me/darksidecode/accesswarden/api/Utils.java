@@ -16,11 +16,26 @@
 
 package me.darksidecode.accesswarden.api;
 
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 final class Utils {
 
+    /**
+     * The maximum number of compiled globs that are kept in {@link #compiledGlobs}.
+     */
+    private static final int MAX_COMPILED_GLOBS = 4096;
+
+    /**
+     * Glob (as specified in a configuration) -> compiled glob matcher.
+     * {@link GlobMatcher} objects are immutable and thread-safe, so they can be shared freely.
+     */
+    private static final ConcurrentMap<String, GlobMatcher> compiledGlobs = new ConcurrentHashMap<>();
+
     private Utils() {}
 
-    private static String globToRegex(String glob) {
+    static String globToRegex(String glob) {
         if (glob == null)
             throw new NullPointerException("glob cannot be null");
 
@@ -57,14 +72,33 @@ final class Utils {
         return regex.append('$').toString();
     }
 
-    static boolean callFrameMatches(StackTraceElement frame, String globFilter) {
-        if (frame == null)
-            throw new NullPointerException("frame cannot be null");
+    static GlobMatcher compileGlob(String glob) {
+        if (glob == null)
+            throw new NullPointerException("glob cannot be null");
+
+        GlobMatcher matcher = compiledGlobs.get(glob);
 
-        String regexFilter = globToRegex(globFilter);
-        String callStr = frame.getClassName() + "#" + frame.getMethodName();
+        if (matcher == null) {
+            matcher = GlobMatcher.compile(glob);
+
+            if (compiledGlobs.size() >= MAX_COMPILED_GLOBS) {
+                // Evict an arbitrary entry to stay within bounds. Globs come from configurations,
+                // so this only ever happens with an unusually large number of distinct patterns.
+                Iterator<String> it = compiledGlobs.keySet().iterator();
+
+                if (it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+
+            GlobMatcher concurrentlyCompiled = compiledGlobs.putIfAbsent(glob, matcher);
+
+            if (concurrentlyCompiled != null)
+                matcher = concurrentlyCompiled;
+        }
 
-        return callStr.matches(regexFilter);
+        return matcher;
     }
 
 }
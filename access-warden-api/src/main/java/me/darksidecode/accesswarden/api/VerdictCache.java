@@ -0,0 +1,165 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.api;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, lock-free cache of verdicts for the call stacks that were checked against a particular configuration.
+ * <p>
+ * The verdict for a configuration only depends on the (filtered) frames that are inspected to check it, so these
+ * frames make up the cache key (see {@link InspectedFrames}), and a hash collision can never make one call stack
+ * get the verdict of another one.
+ * <p>
+ * The cache is set-associative: each key can only be stored in one of the {@link #WAYS} slots that
+ * follow the slot its hash points to. When all of these slots are taken, one of them is evicted with
+ * the CLOCK algorithm - entries that were hit since the last sweep get a second chance.
+ */
+final class VerdictCache {
+
+    /**
+     * The number of slots in each cache, if not overridden with the "accesswarden.verdictCacheSize"
+     * system property. Rounded up to a power of two.
+     */
+    private static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * The number of slots each key can be stored in.
+     */
+    private static final int WAYS = 4;
+
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(WAYS,
+            Integer.getInteger("accesswarden.verdictCacheSize", DEFAULT_CAPACITY) * 2 - 1));
+
+    private final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(CAPACITY);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the cached entry for the specified call stack, or {@code null} if there is none.
+     */
+    Entry get(FilteredContext ctx) {
+        int hash = InspectedFrames.hash(ctx);
+
+        for (int i = 0; i < WAYS; i++) {
+            Entry entry = slots.get((hash + i) & (CAPACITY - 1));
+
+            if (entry != null && entry.frames.matches(ctx, hash)) {
+                entry.referenced = true;
+                hits.increment();
+                return entry;
+            }
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @return the cached entry for the call stack consisting of just the specified
+     *         frame, or {@code null} if there is none.
+     */
+    Entry get(StackWalker.StackFrame frame, boolean retainedClass) {
+        int hash = InspectedFrames.hash(frame, retainedClass);
+
+        for (int i = 0; i < WAYS; i++) {
+            Entry entry = slots.get((hash + i) & (CAPACITY - 1));
+
+            if (entry != null && entry.frames.matches(frame, retainedClass, hash)) {
+                entry.referenced = true;
+                hits.increment();
+                return entry;
+            }
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @param denialMessage message of the {@link SecurityException} the call
+     *                      was denied with, or {@code null} if it was allowed.
+     */
+    void put(FilteredContext ctx, String denialMessage) {
+        put(new Entry(InspectedFrames.of(ctx), denialMessage));
+    }
+
+    /**
+     * @param denialMessage message of the {@link SecurityException} the call
+     *                      was denied with, or {@code null} if it was allowed.
+     */
+    void put(StackWalker.StackFrame frame, boolean retainedClass, String denialMessage) {
+        put(new Entry(InspectedFrames.of(frame, retainedClass), denialMessage));
+    }
+
+    private void put(Entry newEntry) {
+        int base = newEntry.frames.hash;
+
+        // Take a free slot if there is one. Otherwise, sweep the slots like a clock hand, clearing the
+        // "referenced" bits on the way, and evict the first entry that has not been referenced since.
+        // Two rounds are always enough for that, unless other threads keep hitting the same entries,
+        // in which case give up - it is just a cache, and the verdict will be computed again next time.
+        for (int i = 0; i < WAYS * 2; i++) {
+            int slot = (base + i) & (CAPACITY - 1);
+            Entry entry = slots.get(slot);
+
+            if (entry == null) {
+                if (slots.compareAndSet(slot, null, newEntry))
+                    return;
+            } else if (entry.referenced)
+                entry.referenced = false;
+            else if (slots.compareAndSet(slot, entry, newEntry))
+                return;
+        }
+    }
+
+    static final class Entry {
+        private final InspectedFrames frames;
+
+        private final String denialMessage;
+
+        /**
+         * The CLOCK "second chance" bit. Races on it are benign.
+         */
+        private volatile boolean referenced;
+
+        private Entry(InspectedFrames frames, String denialMessage) {
+            this.frames = frames;
+            this.denialMessage = denialMessage;
+        }
+
+        /**
+         * @return {@code null} if the call was allowed, otherwise the message of
+         *         the {@link SecurityException} the call was denied with.
+         */
+        String denialMessage() {
+            return denialMessage;
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.api;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A per-thread record of the protected methods whose checks passed on that thread, which lets checks of
+ * nested protected method calls skip the part of the call stack that an outer check has already verified.
+ * <p>
+ * A check that passed for some invocation of a protected method proves that its configuration holds for the
+ * frames below that invocation - and these frames cannot change for as long as the invocation is running.
+ * Checks are only recorded when they are performed by checker methods generated by the Access Warden Core module
+ * (see {@link ContextResolution.Options#FILTER_PROTECTED_METHOD}), which run before anything else in the protected
+ * method, so that a failed check never lets the protected method continue. Thus, every frame of a recorded method
+ * that is still on the call stack belongs to an invocation that passed the check - and the record is only trusted
+ * for frames that are still there. The frames of invocations that completed, whether normally or with an exception,
+ * are simply gone from the stack, so no cleanup is required, and recursive invocations need no special treatment.
+ * <p>
+ * This only holds for the very class whose method was recorded: another class with the same name (for example,
+ * one defined by another class loader from an untransformed copy of the jar) never checks anything. So methods
+ * are identified by their declaring class itself (weakly referenced, so that the record does not keep classes
+ * from being unloaded), along with their name and descriptor, and frames must be walked with class references
+ * retained (see {@link ContextResolution.Options#RETAIN_CLASS_REFERENCES}) both to record and to skip them.
+ */
+final class VerifiedFrames {
+
+    /**
+     * The number of most recently verified methods to remember per thread.
+     */
+    private static final int CAPACITY = 8;
+
+    private static final ThreadLocal<VerifiedFrames> CURRENT = ThreadLocal.withInitial(VerifiedFrames::new);
+
+    private final WeakReference<?>[] declaringClasses = new WeakReference<?>[CAPACITY];
+
+    private final String[] methodNames = new String[CAPACITY];
+
+    private final String[] descriptors = new String[CAPACITY];
+
+    private final RestrictedCall.Configuration[] confs = new RestrictedCall.Configuration[CAPACITY];
+
+    private int size;
+
+    /**
+     * Index of the entry that will be replaced next, once the record is full.
+     */
+    private int next;
+
+    /**
+     * Set when this record can no longer be trusted. See disable().
+     */
+    private boolean disabled;
+
+    private VerifiedFrames() {}
+
+    static VerifiedFrames current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Checks if checks of the specified configuration can both be recorded and skip verified parts of the call stack,
+     * which is the case when they inspect the entire call stack without comparing it to an exact pattern. Strict class
+     * identity is not supported, since {@link #covers(RestrictedCall.Configuration, RestrictedCall.Configuration)}
+     * only compares rules that match frames by their names.
+     */
+    static boolean isApplicable(RestrictedCall.Configuration conf) {
+        return conf.exactExpectedCallStack().isEmpty()
+                && conf.contextResolutionDepth() == ContextResolution.UNLIMITED_DEPTH
+                && !conf.strictClassIdentity();
+    }
+
+    /**
+     * @return indices of the entries that verified everything the specified configuration
+     *         requires of the frames below them, or {@code null} if there are none.
+     */
+    int[] coveringEntries(RestrictedCall.Configuration conf) {
+        if (disabled)
+            return null;
+
+        int[] entries = new int[size];
+        int count = 0;
+
+        for (int i = 0; i < size; i++)
+            if (covers(confs[i], conf))
+                entries[count++] = i;
+
+        return count == 0 ? null : Arrays.copyOf(entries, count);
+    }
+
+    /**
+     * Checks if frames below the specified one have already been verified by one of the specified entries.
+     * The frame must have been walked with class references retained.
+     */
+    boolean isVerified(StackWalker.StackFrame frame, int[] coveringEntries) {
+        Class<?> declaringClass = frame.getDeclaringClass();
+
+        for (int i : coveringEntries)
+            if (declaringClasses[i].get() == declaringClass
+                    && methodNames[i].equals(frame.getMethodName())
+                    && descriptors[i].equals(frame.getDescriptor()))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Remembers that a check of the specified configuration has passed for the protected method of the specified
+     * frame, which must have been walked with class references retained.
+     */
+    void record(StackWalker.StackFrame protectedFrame, RestrictedCall.Configuration conf) {
+        Class<?> declaringClass = protectedFrame.getDeclaringClass();
+        String methodName = protectedFrame.getMethodName();
+        String descriptor = protectedFrame.getDescriptor();
+
+        for (int i = 0; i < size; i++)
+            if (confs[i] == conf && declaringClasses[i].get() == declaringClass
+                    && methodNames[i].equals(methodName) && descriptors[i].equals(descriptor))
+                return;
+
+        declaringClasses[next] = new WeakReference<>(declaringClass);
+        methodNames[next] = methodName;
+        descriptors[next] = descriptor;
+        confs[next] = conf;
+
+        next = (next + 1) % CAPACITY;
+        size = Math.max(size, next == 0 ? CAPACITY : next);
+    }
+
+    /**
+     * Makes this record never cover anything again. Called when calls that were not checked (see
+     * {@link ContextResolution.Permit}) may still be running on the thread, which breaks the assumption
+     * that all frames of recorded methods on the call stack belong to invocations that passed the check.
+     */
+    void disable() {
+        disabled = true;
+        size = 0;
+    }
+
+    /**
+     * Checks if a (passed) check of the verified configuration implies that the frames below the protected
+     * method would pass all checks of the current configuration that inspect more than the direct caller.
+     */
+    private static boolean covers(RestrictedCall.Configuration verified, RestrictedCall.Configuration current) {
+        int filters = ContextResolution.Options.FILTER_REFLECTION_FRAMES | ContextResolution.Options.FILTER_NATIVE_FRAMES;
+
+        // The verified check must not have filtered out frames that the current one inspects.
+        if ((verified.contextResolutionOptions() & ~current.contextResolutionOptions() & filters) != 0)
+            return false;
+
+        if (current.prohibitReflectionTraces() && !verified.prohibitReflectionTraces())
+            return false;
+
+        if (current.prohibitNativeTraces() && !verified.prohibitNativeTraces())
+            return false;
+
+        List<String> prohibitedSources = current.prohibitedSources();
+        return prohibitedSources.isEmpty() || verified.prohibitedSources().containsAll(prohibitedSources);
+    }
+
+}
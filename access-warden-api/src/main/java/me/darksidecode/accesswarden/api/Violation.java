@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.api;
+
+/**
+ * A call that violated a policy, and was either let through in audit mode (see {@link RestrictedCall#auditOnly()}),
+ * or denied (only reported when the "accesswarden.reportDenials" system property is set to "true").
+ */
+public final class Violation {
+
+    private final String policyId;
+
+    private final StackTraceElement offendingFrame;
+
+    private final String message;
+
+    private final long timestampMillis;
+
+    private final long threadId;
+
+    private final boolean denied;
+
+    Violation(String policyId, StackTraceElement offendingFrame, String message,
+              long timestampMillis, long threadId, boolean denied) {
+        this.policyId = policyId;
+        this.offendingFrame = offendingFrame;
+        this.message = message;
+        this.timestampMillis = timestampMillis;
+        this.threadId = threadId;
+        this.denied = denied;
+    }
+
+    /**
+     * The id of the violated policy (see {@link RestrictedCall.Configuration#policyId()}), or {@code null} if it has none.
+     */
+    public String policyId() {
+        return policyId;
+    }
+
+    /**
+     * The direct caller of the protected method (the most recent call that is neither a reflection call, nor
+     * a native one, or just the most recent call if there is no such call), or {@code null} if it is unknown.
+     */
+    public StackTraceElement offendingFrame() {
+        return offendingFrame;
+    }
+
+    /**
+     * The message of the {@link SecurityException} the call was (or, in audit mode, would be) denied with.
+     */
+    public String message() {
+        return message;
+    }
+
+    /**
+     * The time of the call, in milliseconds since the epoch.
+     */
+    public long timestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * The id of the thread that made the call.
+     */
+    public long threadId() {
+        return threadId;
+    }
+
+    /**
+     * Whether the call was denied ({@code false} if it was let through in audit mode).
+     */
+    public boolean denied() {
+        return denied;
+    }
+
+    @Override
+    public String toString() {
+        return "Violation{policyId=" + policyId + ", offendingFrame=" + offendingFrame + ", message=" + message
+                + ", timestampMillis=" + timestampMillis + ", threadId=" + threadId + ", denied=" + denied + "}";
+    }
+
+}
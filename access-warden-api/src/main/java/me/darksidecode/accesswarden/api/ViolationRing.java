@@ -0,0 +1,92 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer ring buffer of violations. Each slot has a sequence number
+ * that tells whether the slot is ready to be written to or read from on the current lap, so producers and consumers
+ * only ever compete for the head and tail counters with a single CAS each, and never wait for each other.
+ */
+final class ViolationRing {
+
+    private final int mask;
+
+    private final AtomicReferenceArray<Violation> slots;
+
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity must be a power of two.
+     */
+    ViolationRing(int capacity) {
+        mask = capacity - 1;
+        slots = new AtomicReferenceArray<>(capacity);
+        sequences = new AtomicLongArray(capacity);
+
+        for (int i = 0; i < capacity; i++)
+            sequences.set(i, i);
+    }
+
+    /**
+     * @return false if the buffer is full, in which case the violation is not added.
+     */
+    boolean offer(Violation violation) {
+        while (true) {
+            long pos = tail.get();
+            int idx = (int) pos & mask;
+            long diff = sequences.get(idx) - pos;
+
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.set(idx, violation);
+                    sequences.set(idx, pos + 1); // publish
+                    return true;
+                }
+            } else if (diff < 0)
+                return false; // the slot from the previous lap has not been consumed yet
+        }
+    }
+
+    /**
+     * @return the least recently added violation, or {@code null} if the buffer is empty.
+     */
+    Violation poll() {
+        while (true) {
+            long pos = head.get();
+            int idx = (int) pos & mask;
+            long diff = sequences.get(idx) - (pos + 1);
+
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    Violation violation = slots.getAndSet(idx, null);
+                    sequences.set(idx, pos + mask + 1); // free the slot for the next lap
+                    return violation;
+                }
+            } else if (diff < 0)
+                return null; // not published yet
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.api;
+
+/**
+ * Receives the violations reported in audit mode. See {@link AuditLog#setSink(ViolationSink)}.
+ * <p>
+ * Sinks are only ever called from the background thread of {@link AuditLog} (which also delivers the violations
+ * that are left at JVM shutdown), one violation at a time - so they need not be thread-safe. They are never called
+ * from the threads that made the calls, so they may freely block on I/O or logging.
+ */
+@FunctionalInterface
+public interface ViolationSink {
+
+    void accept(Violation violation) throws Exception;
+
+}
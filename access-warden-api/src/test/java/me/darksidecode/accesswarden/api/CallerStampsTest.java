@@ -0,0 +1,45 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CallerStampsTest {
+
+    @Test
+    void consumesOnlyTheStampedToken() {
+        Object token = new Object();
+        CallerStamps.stamp(token, MethodHandles.lookup(), CallerStampsTest.class, CallerStampsTest.class.getName());
+
+        assertFalse(CallerStamps.consume(new Object()));
+        assertTrue(CallerStamps.consume(token));
+        assertFalse(CallerStamps.consume(token));
+    }
+
+    @Test
+    void nullTokensNeverMatch() {
+        // Unstamped threads have a null token, just like checker classes that are still being initialized.
+        CallerStamps.clear();
+        assertFalse(CallerStamps.consume(null));
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DenialBreakerTest {
+
+    @Test
+    void tripsOnlyForTheDeniedCallStack() throws Exception {
+        DenialBreaker breaker = new DenialBreaker();
+
+        // Both call stacks have the same direct caller (Service#run), but only the reflective one keeps getting denied.
+        FilteredContext reflective = (FilteredContext) Service.class.getDeclaredMethod("run").invoke(null);
+        FilteredContext direct = Service.run();
+
+        for (int i = 0; i < 1000 && breaker.trips() == 0; i++)
+            breaker.denied(reflective);
+
+        assertEquals(1, breaker.trips());
+        assertTrue(breaker.mayReject());
+        assertTrue(breaker.rejects(reflective));
+        assertFalse(breaker.rejects(direct));
+        assertEquals(1, breaker.rejections());
+    }
+
+    static final class Service {
+        static FilteredContext run() throws UnexpectedSetupException {
+            return ContextResolution.resolve(ContextResolution.Options.FILTER_CONTEXT_RESOLUTION,
+                    ContextResolution.UNLIMITED_DEPTH);
+        }
+    }
+
+}
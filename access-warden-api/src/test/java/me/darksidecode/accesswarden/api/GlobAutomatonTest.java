@@ -0,0 +1,76 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares {@link GlobAutomaton} with matching each of its globs with a regular expression.
+ */
+class GlobAutomatonTest {
+
+    @Test
+    void sharedPrefixesAndWildcards() {
+        List<String> globs = Arrays.asList("a.b.*#run", "a.b.C#*", "a.?.D#m", "*#main", "a.b.C#m*n");
+
+        assertMatchesLikeRegex(globs, "a.b.C", "anything");
+        assertMatchesLikeRegex(globs, "a.b.X", "run");
+        assertMatchesLikeRegex(globs, "a.b.X", "runs");
+        assertMatchesLikeRegex(globs, "a.x.D", "m");
+        assertMatchesLikeRegex(globs, "a.xy.D", "m");
+        assertMatchesLikeRegex(globs, "z", "main");
+        assertMatchesLikeRegex(globs, "a.b.C\n", "main");
+        assertMatchesLikeRegex(globs, "a.b.Y", "mn");
+    }
+
+    @Test
+    void randomGlobSetsMatchLikeRegex() {
+        RandomGlobs random = new RandomGlobs(5);
+
+        for (int i = 0; i < 5_000; i++) {
+            List<String> globs = random.globs(8);
+
+            if (globs.isEmpty())
+                continue;
+
+            GlobAutomaton automaton = new GlobAutomaton(globs);
+
+            for (int j = 0; j < 20; j++) {
+                String className = random.name();
+                String methodName = random.name();
+
+                assertEquals(RandomGlobs.regexMatchesAny(globs, className, methodName),
+                        automaton.matchesAny(className, methodName),
+                        () -> RandomGlobs.escape(globs) + " against "
+                                + RandomGlobs.escape(className) + "#" + RandomGlobs.escape(methodName));
+            }
+        }
+    }
+
+    private static void assertMatchesLikeRegex(List<String> globs, String className, String methodName) {
+        assertEquals(RandomGlobs.regexMatchesAny(globs, className, methodName),
+                new GlobAutomaton(globs).matchesAny(className, methodName),
+                () -> RandomGlobs.escape(globs) + " against " + className + "#" + methodName);
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares {@link GlobMatcher} with the regular expressions that globs used to be matched with.
+ */
+class GlobMatcherTest {
+
+    private static final String[][] EDGE_CASES = {
+            // glob, class name, method name
+            { "*",                     "a.b.C",           "m"        },
+            { "a.b.C#m",               "a.b.C",           "m"        },
+            { "a.b.C#m",               "a.b.C",           "m2"       },
+            { "a.b.C#m",               "aXb.C",           "m"        },
+            { "a.*",                   "a.b.C",           "m"        },
+            { "*#main",                "a.b.C",           "main"     },
+            { "*#main",                "a.b.C",           "domain"   },
+            { "a.*.C#*",               "a.b.c.C",         "m"        },
+            { "a.b.C#?",               "a.b.C",           "m"        },
+            { "a.b.C#?",               "a.b.C",           ""         },
+            // "#" inside names: any "#" of the glob may fall on the separator.
+            { "a#b#c",                 "a#b",             "c"        },
+            { "a#b#c",                 "a",               "b#c"      },
+            { "a#*",                   "a#b",             "c"        },
+            { "*#*#*",                 "a",               "b"        },
+            { "a?b#m",                 "a#b",             "m"        },
+            // "?" matches a valid surrogate pair as a whole, and a lone surrogate as a single character.
+            { "a?b#m",                 "a\uD83D\uDE00b",  "m"        },
+            { "a??b#m",                "a\uD83D\uDE00b",  "m"        },
+            { "a?b#m",                 "a\uD83Db",        "m"        },
+            { "a?#m",                  "a\uD83D",         "m"        },
+            { "a?\uDE00#m",            "a\uD83D\uDE00",   "m"        },
+            { "*\uDE00#m",             "a\uD83D\uDE00",   "m"        },
+            // Wildcards never match line terminators.
+            { "a?b#m",                 "a\nb",            "m"        },
+            { "a*b#m",                 "a\r\nb",          "m"        },
+            { "*",                     "a\u2028",         "m"        },
+            { "*",                     "a",               "m\u0085"  },
+            { "a\nb#m",                "a\nb",            "m"        },
+            // Escaped regular expression characters are literal.
+            { "a\\b#m",                "a\\b",            "m"        },
+            { "a.b#m",                 "aXb",             "m"        },
+            { "a\\*#m",                "a\\xyz",          "m"        },
+            // Other regular expression characters are passed through, and matched with the regex itself.
+            { "a.b.C#m$",              "a.b.C",           "m"        },
+            { "^a.b.C#m",              "a.b.C",           "m"        },
+            { "a.b.C#(get|set)Value",  "a.b.C",           "setValue" },
+            { "a.b.C#[gs]etValue",     "a.b.C",           "getValue" },
+            { "a.b.C#m{2}",            "a.b.C",           "mm"       },
+            { "a.b.C#m+",              "a.b.C",           "mmm"      },
+    };
+
+    @Test
+    void edgeCasesMatchLikeRegex() {
+        for (String[] edgeCase : EDGE_CASES)
+            assertMatchesLikeRegex(edgeCase[0], edgeCase[1], edgeCase[2]);
+    }
+
+    @Test
+    void randomGlobsMatchLikeRegex() {
+        RandomGlobs random = new RandomGlobs(4);
+
+        for (int i = 0; i < 200_000; i++)
+            assertMatchesLikeRegex(random.glob(), random.name(), random.name());
+    }
+
+    @Test
+    void onlyGlobsWithRegexCharactersOrSurrogatesFallBackToRegex() {
+        assertFalse(GlobMatcher.compile("a.b.C#m*").isRegexFallback());
+        assertFalse(GlobMatcher.compile("a\\b?#\n").isRegexFallback());
+        assertTrue(GlobMatcher.compile("a.b.C#m$").isRegexFallback());
+        assertTrue(GlobMatcher.compile("a.b.C#(a|b)").isRegexFallback());
+        assertTrue(GlobMatcher.compile("a.b.C#m\uD83D*").isRegexFallback());
+    }
+
+    @Test
+    void emptyGlobsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> GlobMatcher.compile(""));
+        assertThrows(NullPointerException.class, () -> GlobMatcher.compile(null));
+    }
+
+    private static void assertMatchesLikeRegex(String glob, String className, String methodName) {
+        assertEquals(RandomGlobs.regexMatches(glob, className, methodName),
+                GlobMatcher.compile(glob).matches(className, methodName),
+                () -> RandomGlobs.describe(glob, className, methodName));
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares {@link GlobSet} with matching each of its globs with a regular expression, for every kind of glob
+ * it classifies: exact, prefix, suffix, general, and those that are matched with regular expressions.
+ */
+class GlobSetTest {
+
+    @Test
+    void eachKindOfGlob() {
+        List<String> globs = Arrays.asList(
+                "a.b.C#m",          // exact
+                "a#b#c",            // exact, with "#" inside a name
+                "x.y.*",            // prefix
+                "*#main",           // suffix
+                "p.*.Q#r?n",        // general
+                "s.T#(get|set)V"    // regular expression
+        );
+
+        for (String[] frame : new String[][] {
+                { "a.b.C", "m" }, { "a.b.C", "m2" }, { "a#b", "c" }, { "a", "b#c" }, { "x.y.Z", "w" },
+                { "x.y", "z" }, { "x.y.\n", "z" }, { "q", "main" }, { "q\r", "main" }, { "p.k.Q", "run" },
+                { "p.Q", "run" }, { "s.T", "setV" }, { "s.T", "putV" }
+        })
+            assertMatchesLikeRegex(globs, frame[0], frame[1]);
+    }
+
+    @Test
+    void emptySetMatchesNothing() {
+        GlobSet empty = GlobSet.compile(Collections.emptyList());
+
+        assertTrue(empty.isEmpty());
+        assertFalse(empty.matchesAny("a", "b"));
+    }
+
+    @Test
+    void randomGlobSetsMatchLikeRegex() {
+        RandomGlobs random = new RandomGlobs(6);
+        List<String> regexGlobs = Arrays.asList("a$", "^a#b", "(a|b)#*", "[ab].*", "a+#?");
+
+        for (int i = 0; i < 5_000; i++) {
+            List<String> globs = new ArrayList<>(random.globs(8));
+
+            if (i % 4 == 0)
+                globs.add(regexGlobs.get(i / 4 % regexGlobs.size()));
+
+            GlobSet set = GlobSet.compile(globs);
+
+            for (int j = 0; j < 20; j++) {
+                String className = random.name();
+                String methodName = random.name();
+
+                assertEquals(RandomGlobs.regexMatchesAny(globs, className, methodName),
+                        set.matchesAny(className, methodName),
+                        () -> RandomGlobs.escape(globs) + " against "
+                                + RandomGlobs.escape(className) + "#" + RandomGlobs.escape(methodName));
+            }
+        }
+    }
+
+    private static void assertMatchesLikeRegex(List<String> globs, String className, String methodName) {
+        assertEquals(RandomGlobs.regexMatchesAny(globs, className, methodName),
+                GlobSet.compile(globs).matchesAny(className, methodName),
+                () -> RandomGlobs.escape(globs) + " against "
+                        + RandomGlobs.escape(className) + "#" + RandomGlobs.escape(methodName));
+    }
+
+}
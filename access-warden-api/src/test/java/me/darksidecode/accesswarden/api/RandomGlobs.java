@@ -0,0 +1,106 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Random globs and call frames over small alphabets (so that they match each other often enough), which include the
+ * characters that globs treat specially: "#" (inside names, too), wildcards, escaped regular expression characters,
+ * line terminators (which "?" and "*" must not match), and surrogates (valid pairs, which "?" matches as a whole, and
+ * lone ones). Frames are matched against the regular expression of {@link Utils#globToRegex(String)} as the reference.
+ */
+final class RandomGlobs {
+
+    private static final char[] GLOB_CHARS = {
+            'a', 'b', '.', '#', '*', '*', '?', '?', '\\', '\n', '\u2028', '\uD83D', '\uDE00'
+    };
+
+    private static final char[] NAME_CHARS = {
+            'a', 'b', '.', '#', '\\', '\n', '\r', '\u0085', '\u2029', '\uD83D', '\uDE00'
+    };
+
+    private final Random random;
+
+    RandomGlobs(long seed) {
+        random = new Random(seed);
+    }
+
+    String glob() {
+        return randomString(GLOB_CHARS, 1 + random.nextInt(8));
+    }
+
+    List<String> globs(int maxCount) {
+        List<String> globs = new ArrayList<>();
+        int count = random.nextInt(maxCount + 1);
+
+        for (int i = 0; i < count; i++)
+            globs.add(glob());
+
+        return globs;
+    }
+
+    String name() {
+        if (random.nextInt(4) == 0)
+            return "a\uD83D\uDE00b"; // a valid surrogate pair, which the alphabet only occasionally gives
+
+        return randomString(NAME_CHARS, random.nextInt(6));
+    }
+
+    private String randomString(char[] alphabet, int length) {
+        StringBuilder s = new StringBuilder(length);
+
+        for (int i = 0; i < length; i++)
+            s.append(alphabet[random.nextInt(alphabet.length)]);
+
+        return s.toString();
+    }
+
+    static boolean regexMatches(String glob, String className, String methodName) {
+        return Pattern.compile(Utils.globToRegex(glob)).matcher(className + "#" + methodName).matches();
+    }
+
+    static boolean regexMatchesAny(List<String> globs, String className, String methodName) {
+        for (String glob : globs)
+            if (regexMatches(glob, className, methodName))
+                return true;
+
+        return false;
+    }
+
+    static String describe(String glob, String className, String methodName) {
+        return "glob " + escape(glob) + " against " + escape(className) + "#" + escape(methodName);
+    }
+
+    static String escape(Object s) {
+        StringBuilder escaped = new StringBuilder("\"");
+
+        for (char c : String.valueOf(s).toCharArray()) {
+            if (c >= 0x20 && c < 0x7F)
+                escaped.append(c);
+            else
+                escaped.append(String.format("\\u%04X", (int) c));
+        }
+
+        return escaped.append('"').toString();
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StrictClassIdentityTest {
+
+    @Test
+    void permittedClassesAreResolvedOnceTheyCanBe() throws Exception {
+        HidingClassLoader loader = new HidingClassLoader(StrictClassIdentityCaller.class);
+        RestrictedCall.Configuration conf = RestrictedCall.Configuration.newBuilder()
+                .prohibitArbitraryInvocation(true)
+                .permittedSources(Collections.singletonList(StrictClassIdentityCaller.class.getName() + "#call"))
+                .strictClassIdentity(true)
+                .classLoader(loader)
+                .build();
+
+        assertThrows(SecurityException.class, () -> StrictClassIdentityCaller.call(conf));
+
+        loader.hidden = false;
+        assertDoesNotThrow(() -> StrictClassIdentityCaller.call(conf));
+        assertDoesNotThrow(() -> StrictClassIdentityCaller.call(conf));
+    }
+
+    /**
+     * Delegates everything to the parent, but pretends not to find the specified class while it is hidden.
+     */
+    private static final class HidingClassLoader extends ClassLoader {
+        private final String hiddenClassName;
+
+        private volatile boolean hidden = true;
+
+        private HidingClassLoader(Class<?> hiddenClass) {
+            super(hiddenClass.getClassLoader());
+            hiddenClassName = hiddenClass.getName();
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (hidden && name.equals(hiddenClassName))
+                throw new ClassNotFoundException(name);
+
+            return super.loadClass(name, resolve);
+        }
+    }
+
+}
+
+/**
+ * Top-level, since the names of nested classes contain "$", which does not make literal class names of globs.
+ */
+final class StrictClassIdentityCaller {
+
+    private StrictClassIdentityCaller() {}
+
+    static void call(RestrictedCall.Configuration conf) throws UnexpectedSetupException {
+        // This method takes the place of the direct caller of a protected method (see ContextResolution#permit).
+        ContextResolution.ensureCallPermitted(
+                conf.contextResolutionOptions() & ~ContextResolution.Options.FILTER_RESOLUTION_CALLER, conf);
+    }
+
+}
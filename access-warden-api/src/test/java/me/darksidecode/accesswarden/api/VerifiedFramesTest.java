@@ -0,0 +1,152 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that frames verified by earlier checks (see {@link VerifiedFrames}) only let later checks
+ * skip the frames below them when they belong to the very methods whose checks passed.
+ */
+class VerifiedFramesTest {
+
+    private static final RestrictedCall.Configuration CONF;
+
+    static {
+        try {
+            CONF = RestrictedCall.Configuration.newBuilder()
+                    .prohibitedSources(Collections.singletonList("*Evil#attack"))
+                    .build();
+        } catch (UnexpectedSetupException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    @Test
+    void permittedCallsThroughVerifiedFramesAreAllowed() {
+        assertDoesNotThrow(() -> Service.run(() -> {}));
+        assertDoesNotThrow(() -> Service.run(Target::protectedMethod));
+    }
+
+    @Test
+    void prohibitedCallsThroughVerifiedMethodsAreDenied() {
+        assertDoesNotThrow(() -> Service.run(() -> {}));
+        assertThrows(SecurityException.class, () -> Evil.attack(Service.class.getMethod("run", Runnable.class)));
+    }
+
+    @Test
+    void sameNamedClassesDoNotPassForVerifiedOnes() throws Exception {
+        // Have the thread record a passed check of Service#run.
+        Service.run(() -> {});
+
+        // A class with the same name that never checks anything, like one from an untransformed copy of the jar.
+        Class<?> untransformedService = new IsolatingClassLoader(Service.class).loadClass(Service.class.getName());
+        assertNotSame(Service.class, untransformedService);
+        untransformedService.getField("transformed").setBoolean(null, false);
+
+        // Evil -> (untransformed) Service#run -> Target#protectedMethod: Evil must still be seen.
+        assertThrows(SecurityException.class, () -> Evil.attack(untransformedService.getMethod("run", Runnable.class)));
+    }
+
+    /**
+     * Stands for the checker method that the Access Warden Core module generates for protected methods.
+     */
+    static final class Checker {
+        static void check() {
+            try {
+                ContextResolution.ensureCallPermitted(
+                        CONF.contextResolutionOptions() | ContextResolution.Options.FILTER_PROTECTED_METHOD, CONF);
+            } catch (UnexpectedSetupException ex) {
+                throw new SecurityException("unexpected setup: " + ex.getMessage());
+            }
+        }
+    }
+
+    public static final class Service {
+        /**
+         * Whether this class stands for a transformed one, with a checker call at the start of its protected method.
+         */
+        public static boolean transformed = true;
+
+        public static void run(Runnable next) {
+            if (transformed)
+                Checker.check();
+
+            next.run();
+        }
+    }
+
+    static final class Target {
+        static void protectedMethod() {
+            Checker.check();
+        }
+    }
+
+    static final class Evil {
+        static void attack(Method run) throws Throwable {
+            try {
+                run.invoke(null, (Runnable) Target::protectedMethod);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    /**
+     * Defines its own copy of the specified class, and delegates loading of everything else to the parent.
+     */
+    private static final class IsolatingClassLoader extends ClassLoader {
+        private final Class<?> isolated;
+
+        private IsolatingClassLoader(Class<?> isolated) {
+            super(isolated.getClassLoader());
+            this.isolated = isolated;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.equals(isolated.getName()))
+                return super.loadClass(name, resolve);
+
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> cls = findLoadedClass(name);
+
+                if (cls == null) {
+                    try (InputStream in = isolated.getResourceAsStream(
+                            name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+                        byte[] bytes = in.readAllBytes();
+                        cls = defineClass(name, bytes, 0, bytes.length);
+                    } catch (IOException ex) {
+                        throw new ClassNotFoundException(name, ex);
+                    }
+                }
+
+                return cls;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.benchmarks.fixtures;
+
+import me.darksidecode.accesswarden.api.RestrictedCall;
+
+/**
+ * Protected methods of different policy shapes (including those of the demo), each with a public entry point that
+ * calls it, and an unprotected method as the baseline. The benchmarks run these classes after they have been transformed by Access Warden Core.
+ */
+public final class RestrictedTargets {
+
+    private RestrictedTargets() {}
+
+    @RestrictedCall (
+            prohibitArbitraryInvocation = true,
+            permittedSources = "me.darksidecode.accesswarden.benchmarks.fixtures.RestrictedTargets#call*"
+    )
+    private static int whitelisted(int x) {
+        return x + 1;
+    }
+
+    @RestrictedCall (
+            prohibitedSources = {
+                    "org.example.untrusted.*",
+                    "*.Exploit#*",
+                    "org.example.plugins.*.Untrusted*#run"
+            }
+    )
+    private static int blacklisted(int x) {
+        return x + 1;
+    }
+
+    @RestrictedCall (
+            prohibitReflectionTraces = true,
+            prohibitNativeTraces = true
+    )
+    private static int noReflection(int x) {
+        return x + 1;
+    }
+
+    /**
+     * The policy of {@code AccessWardenDemo#test}.
+     */
+    @RestrictedCall (
+            preserveThisAnnotation      = true,
+            prohibitReflectionTraces    = true,
+            prohibitNativeTraces        = true,
+            prohibitArbitraryInvocation = true,
+            permittedSources            = "me.darksidecode.accesswarden.benchmarks.fixtures.RestrictedTargets#callDemoTest",
+            strictClassIdentity         = true
+    )
+    private static int demoTest(int x) {
+        return x + 1;
+    }
+
+    /**
+     * The policy of {@code AccessWardenDemo#prohibitTest}.
+     */
+    @RestrictedCall (
+            prohibitedSources = {
+                    "me.darksidecode.accesswarden.benchmarks.fixtures.RestrictedTargets#prohibitTest*",
+                    "me.darksidecode.accesswarden.benchmarks.fixtures.RestrictedTargets#otherProhibitedTest"
+            },
+            cacheVerdicts = true
+    )
+    private static int demoProhibitTest(int x) {
+        return x + 1;
+    }
+
+    private static int unprotected(int x) {
+        return x + 1;
+    }
+
+    public static int callWhitelisted(int x) {
+        return whitelisted(x);
+    }
+
+    public static int callBlacklisted(int x) {
+        return blacklisted(x);
+    }
+
+    public static int callNoReflection(int x) {
+        return noReflection(x);
+    }
+
+    public static int callDemoTest(int x) {
+        return demoTest(x);
+    }
+
+    public static int callDemoProhibitTest(int x) {
+        return demoProhibitTest(x);
+    }
+
+    public static int callUnprotected(int x) {
+        return unprotected(x);
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.benchmarks;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Records all contended monitor enters, thread parks (which is how {@code java.util.concurrent} locks block) and,
+ * on JVMs with virtual threads, pinned virtual threads, with JFR, and groups them by the monitor (or the blocker)
+ * class and the frame that blocked.
+ */
+final class ContentionRecorder implements AutoCloseable {
+
+    private static final String MONITOR_ENTER = "jdk.JavaMonitorEnter";
+
+    private static final String THREAD_PARK = "jdk.ThreadPark";
+
+    private static final String VIRTUAL_THREAD_PINNED = "jdk.VirtualThreadPinned";
+
+    private final Recording recording = new Recording();
+
+    private Instant since;
+
+    ContentionRecorder() {
+        recording.setName("access-warden-benchmarks-contention");
+        recording.enable(MONITOR_ENTER).withThreshold(Duration.ZERO).withStackTrace();
+        recording.enable(THREAD_PARK).withThreshold(Duration.ZERO).withStackTrace();
+        recording.enable(VIRTUAL_THREAD_PINNED).withThreshold(Duration.ZERO).withStackTrace(); // no-op before Java 21
+        recording.setToDisk(true);
+    }
+
+    void start() {
+        recording.start();
+    }
+
+    /**
+     * Only events that start after this call are reported (and not, for example, parks of threads that
+     * were waiting to be started together, and are released right after this).
+     */
+    void markStart() {
+        since = Instant.now();
+    }
+
+    /**
+     * Stops the recording.
+     *
+     * @return the contention points, most expensive (by total blocked time) first.
+     */
+    List<Contention> stop() throws IOException {
+        recording.stop();
+        Path file = Files.createTempFile("access-warden-benchmarks-contention", ".jfr");
+
+        try {
+            recording.dump(file);
+            Map<String, Contention> contentions = new HashMap<>();
+
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (since != null && event.getStartTime().isBefore(since))
+                    continue;
+
+                String name = event.getEventType().getName();
+                String blocker;
+
+                if (name.equals(MONITOR_ENTER))
+                    blocker = "monitor " + className(event.getClass("monitorClass"));
+                else if (name.equals(THREAD_PARK))
+                    blocker = "park " + className(event.getClass("parkedClass"));
+                else if (name.equals(VIRTUAL_THREAD_PINNED))
+                    blocker = "pinned virtual thread";
+                else
+                    continue;
+
+                String key = blocker + " at " + topFrame(event.getStackTrace());
+                contentions.computeIfAbsent(key, Contention::new).add(event.getDuration());
+            }
+
+            List<Contention> sorted = new ArrayList<>(contentions.values());
+            sorted.sort(Comparator.comparingLong((Contention c) -> c.totalNanos).reversed());
+
+            return sorted;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Override
+    public void close() {
+        recording.close();
+    }
+
+    private static String className(RecordedClass cls) {
+        return cls == null ? "(unknown)" : cls.getName();
+    }
+
+    /**
+     * @return the most recent frame that is not in the JDK, which is what caused the
+     *         blocking (for example, the method that entered a synchronized block).
+     */
+    private static String topFrame(RecordedStackTrace stackTrace) {
+        if (stackTrace == null)
+            return "(no stack trace)";
+
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            if (!frame.isJavaFrame())
+                continue;
+
+            String className = frame.getMethod().getType().getName();
+
+            if (!className.startsWith("java.") && !className.startsWith("jdk.") && !className.startsWith("sun."))
+                return className + "#" + frame.getMethod().getName();
+        }
+
+        return stackTrace.getFrames().isEmpty() ? "(empty stack trace)"
+                : stackTrace.getFrames().get(0).getMethod().getType().getName()
+                        + "#" + stackTrace.getFrames().get(0).getMethod().getName();
+    }
+
+    static final class Contention {
+        final String where;
+
+        long count;
+
+        long totalNanos;
+
+        private Contention(String where) {
+            this.where = where;
+        }
+
+        private void add(Duration duration) {
+            count++;
+            totalNanos += duration.toNanos();
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.benchmarks;
+
+import me.darksidecode.accesswarden.api.ContextResolution;
+import me.darksidecode.accesswarden.api.FilteredContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ContextResolution#resolve(int, int)} with every combination of {@link ContextResolution.Options}.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class ContextResolutionBenchmark {
+
+    /**
+     * Bitfields of {@link ContextResolution.Options} (all 64 combinations of the 6 options).
+     */
+    @Param ({
+             "0",  "1",  "2",  "3",  "4",  "5",  "6",  "7",  "8",  "9", "10", "11", "12", "13", "14", "15",
+            "16", "17", "18", "19", "20", "21", "22", "23", "24", "25", "26", "27", "28", "29", "30", "31",
+            "32", "33", "34", "35", "36", "37", "38", "39", "40", "41", "42", "43", "44", "45", "46", "47",
+            "48", "49", "50", "51", "52", "53", "54", "55", "56", "57", "58", "59", "60", "61", "62", "63"
+    })
+    public int options;
+
+    @Param ({ "8", "64", "256" })
+    public int stackDepth;
+
+    /**
+     * The maximum number of (filtered) frames to resolve, or 0 for {@link ContextResolution#UNLIMITED_DEPTH}.
+     */
+    @Param ({ "1", "0" })
+    public int maxDepth;
+
+    private int resolvedMaxDepth;
+
+    @Setup
+    public void setup() {
+        resolvedMaxDepth = maxDepth == 0 ? ContextResolution.UNLIMITED_DEPTH : maxDepth;
+    }
+
+    @Benchmark
+    public FilteredContext resolve() throws Exception {
+        return Stacks.atDepth(stackDepth, () -> ContextResolution.resolve(options, resolvedMaxDepth));
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.benchmarks;
+
+import me.darksidecode.accesswarden.api.ContextResolution;
+import me.darksidecode.accesswarden.api.FilteredContext;
+import me.darksidecode.accesswarden.api.RestrictedCall;
+import me.darksidecode.accesswarden.api.UnexpectedSetupException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ContextResolution#ensureCallPermitted(int, RestrictedCall.Configuration)} with policies of different
+ * shapes and sizes, for calls that are permitted (which is what the check costs in the normal case).
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class EnsureCallPermittedBenchmark {
+
+    public enum PolicyShape {
+        /**
+         * exactExpectedCallStack, built from the actual call stack of the benchmark ({@link #patterns} is ignored).
+         */
+        EXACT_STACK,
+
+        /**
+         * prohibitArbitraryInvocation with {@link #patterns} permittedSources, one of which matches the caller.
+         */
+        WHITELIST,
+
+        /**
+         * {@link #patterns} prohibitedSources, none of which match any frame.
+         */
+        BLACKLIST
+    }
+
+    private static final String BENCHMARKS_PACKAGE = EnsureCallPermittedBenchmark.class.getPackage().getName();
+
+    @Param
+    public PolicyShape shape;
+
+    @Param ({ "1", "16", "128" })
+    public int patterns;
+
+    @Param ({ "8", "64" })
+    public int stackDepth;
+
+    private RestrictedCall.Configuration conf;
+
+    private RestrictedCall.Configuration provisionalExactConf;
+
+    @Setup
+    public void setup() throws UnexpectedSetupException {
+        switch (shape) {
+            case EXACT_STACK:
+                // The actual configuration is built on the first call, when the call stack is known.
+                conf = null;
+                provisionalExactConf = RestrictedCall.Configuration.newBuilder()
+                        .exactExpectedCallStack(Collections.singletonList("*"))
+                        .build();
+                break;
+
+            case WHITELIST:
+                List<String> permittedSources = nonMatchingGlobs(patterns - 1);
+                permittedSources.add(BENCHMARKS_PACKAGE + ".*");
+                conf = RestrictedCall.Configuration.newBuilder()
+                        .prohibitArbitraryInvocation(true)
+                        .permittedSources(permittedSources)
+                        .build();
+                break;
+
+            case BLACKLIST:
+                conf = RestrictedCall.Configuration.newBuilder()
+                        .prohibitedSources(nonMatchingGlobs(patterns))
+                        .build();
+                break;
+        }
+    }
+
+    @Benchmark
+    public RestrictedCall.Configuration ensureCallPermitted() throws Exception {
+        return Stacks.atDepth(stackDepth, () -> {
+            // Both calls must be made right from here, so that they see the same call stack.
+            if (conf == null)
+                conf = exactConfiguration(ContextResolution.resolve(provisionalExactConf.contextResolutionOptions()));
+
+            ContextResolution.ensureCallPermitted(conf.contextResolutionOptions(), conf);
+            return conf;
+        });
+    }
+
+    private static RestrictedCall.Configuration exactConfiguration(FilteredContext ctx) throws UnexpectedSetupException {
+        List<String> expectedCallStack = new ArrayList<>();
+
+        for (int i = 0; i < ctx.size(); i++) {
+            StackTraceElement frame = ctx.frame(i);
+            expectedCallStack.add(literalGlob(frame.getClassName() + "#" + frame.getMethodName()));
+        }
+
+        return RestrictedCall.Configuration.newBuilder()
+                .exactExpectedCallStack(expectedCallStack)
+                .build();
+    }
+
+    /**
+     * Replaces characters that have special meaning in globs (like "$" in names of lambdas) with "?".
+     */
+    private static String literalGlob(String name) {
+        StringBuilder glob = new StringBuilder(name.length());
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            glob.append("*?^$[](){}+|".indexOf(c) == -1 ? c : '?');
+        }
+
+        return glob.toString();
+    }
+
+    /**
+     * @return a mix of exact, prefix, suffix and general globs that only match classes of "org.example".
+     */
+    private static List<String> nonMatchingGlobs(int count) {
+        List<String> globs = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            switch (i % 4) {
+                case 0 : globs.add("org.example.plugin" + i + ".Plugin#onEnable"); break;
+                case 1 : globs.add("org.example.plugin" + i + ".*");              break;
+                case 2 : globs.add("*.example.Plugin" + i + "#onEnable");         break;
+                default: globs.add("org.example.*.Plugin" + i + "#on*");          break;
+            }
+        }
+
+        return globs;
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.benchmarks;
+
+/**
+ * A log-linear histogram of latencies in nanoseconds, with a relative error of at most 1/16 (values below 32 are
+ * exact). Not thread-safe: each thread records into its own histogram, and they are merged once it is done, so that
+ * measuring does not add any contention of its own.
+ */
+final class LatencyHistogram {
+
+    /**
+     * Values below this are counted exactly, and each power of two above is split into {@code LINEAR / 2} buckets.
+     */
+    private static final int LINEAR = 32;
+
+    /**
+     * Values of {@code 2^MAX_EXPONENT} ns (about 4.6 minutes) and more are counted as the largest bucket.
+     */
+    private static final int MAX_EXPONENT = 38;
+
+    private static final int BUCKETS = LINEAR + (MAX_EXPONENT - 5) * (LINEAR / 2);
+
+    private final long[] counts = new long[BUCKETS];
+
+    private long totalCount;
+
+    private long max;
+
+    void record(long nanos) {
+        counts[bucket(Math.max(nanos, 0))]++;
+        totalCount++;
+
+        if (nanos > max)
+            max = nanos;
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] += other.counts[i];
+
+        totalCount += other.totalCount;
+        max = Math.max(max, other.max);
+    }
+
+    long totalCount() {
+        return totalCount;
+    }
+
+    long max() {
+        return max;
+    }
+
+    /**
+     * @return the lowest value of the bucket that contains the specified
+     *         percentile (in range [0; 100]), or 0 if nothing was recorded.
+     */
+    long percentile(double percentile) {
+        long rank = (long) Math.ceil(totalCount * percentile / 100.0);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++)
+            if ((seen += counts[i]) >= Math.max(rank, 1))
+                return lowestValue(i);
+
+        return 0;
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < LINEAR)
+            return (int) nanos;
+
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(nanos), MAX_EXPONENT - 1);
+        int subBucket = (int) Math.min(nanos >>> (exponent - 4), LINEAR - 1); // in range [16; 31]
+
+        return LINEAR + (exponent - 5) * (LINEAR / 2) + (subBucket - LINEAR / 2);
+    }
+
+    private static long lowestValue(int bucket) {
+        if (bucket < LINEAR)
+            return bucket;
+
+        int exponent = (bucket - LINEAR) / (LINEAR / 2) + 5;
+        long subBucket = (bucket - LINEAR) % (LINEAR / 2) + LINEAR / 2;
+
+        return subBucket << (exponent - 4);
+    }
+
+}
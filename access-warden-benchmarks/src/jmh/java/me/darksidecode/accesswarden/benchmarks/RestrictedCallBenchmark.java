@@ -0,0 +1,63 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.benchmarks;
+
+import me.darksidecode.accesswarden.benchmarks.fixtures.RestrictedTargets;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end calls of protected methods of {@link RestrictedTargets} (transformed by Access Warden Core, with the
+ * options passed to Gradle - so generic, compiled and {@code invokedynamic} checkers can all be measured), against
+ * a call of an unprotected method.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class RestrictedCallBenchmark {
+
+    @Param ({ "8", "64" })
+    public int stackDepth;
+
+    public int x;
+
+    @Benchmark
+    public int unprotected() throws Exception {
+        return Stacks.atDepth(stackDepth, () -> RestrictedTargets.callUnprotected(x));
+    }
+
+    @Benchmark
+    public int whitelisted() throws Exception {
+        return Stacks.atDepth(stackDepth, () -> RestrictedTargets.callWhitelisted(x));
+    }
+
+    @Benchmark
+    public int blacklisted() throws Exception {
+        return Stacks.atDepth(stackDepth, () -> RestrictedTargets.callBlacklisted(x));
+    }
+
+    @Benchmark
+    public int noReflection() throws Exception {
+        return Stacks.atDepth(stackDepth, () -> RestrictedTargets.callNoReflection(x));
+    }
+
+}
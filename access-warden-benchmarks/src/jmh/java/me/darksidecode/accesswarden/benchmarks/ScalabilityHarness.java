@@ -0,0 +1,331 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.benchmarks;
+
+import me.darksidecode.accesswarden.benchmarks.fixtures.RestrictedTargets;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Calls protected methods of {@link RestrictedTargets} (transformed by Access Warden Core, with the options passed
+ * to Gradle) from 1 to N platform threads, and then from thousands of virtual threads (on Java 21+), and reports
+ * how throughput scales, latency percentiles of single calls, and where threads blocked (see {@link ContentionRecorder}).
+ * <p>
+ * Everything the runtime keeps per policy or per thread (verdict caches, metrics counters, samplers, the scratch
+ * space of glob matching) is only worth having if it scales with the number of threads, which is what this shows:
+ * with as many threads as cores, scaling should stay close to 100%, and no contention should be reported.
+ * <p>
+ * Run with {@code ./gradlew :access-warden-benchmarks:scalability [-Daccesswarden.*=...] [-PharnessArgs="..."]},
+ * where the arguments are any of:
+ * <pre>
+ *     --workloads       demoTest,demoProhibitTest  (see {@link #WORKLOADS}, or "all")
+ *     --threads         1,2,4,...                  (default: powers of two up to the number of cores, and that number)
+ *     --virtual-threads 10000                      (0 to skip)
+ *     --duration        3                          (seconds per run)
+ *     --warmup          2                          (seconds per workload)
+ * </pre>
+ */
+public final class ScalabilityHarness {
+
+    private static final Map<String, IntUnaryOperator> WORKLOADS = new LinkedHashMap<>();
+
+    static {
+        WORKLOADS.put("demoTest",         RestrictedTargets::callDemoTest);
+        WORKLOADS.put("demoProhibitTest", RestrictedTargets::callDemoProhibitTest);
+        WORKLOADS.put("whitelisted",      RestrictedTargets::callWhitelisted);
+        WORKLOADS.put("blacklisted",      RestrictedTargets::callBlacklisted);
+        WORKLOADS.put("noReflection",     RestrictedTargets::callNoReflection);
+        WORKLOADS.put("unprotected",      RestrictedTargets::callUnprotected);
+    }
+
+    /**
+     * The number of calls between checks whether the run is over (and, on virtual threads, between yields).
+     */
+    private static final int BATCH_SIZE = 64;
+
+    private static final int TOP_CONTENTIONS = 5;
+
+    private ScalabilityHarness() {}
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        List<String> workloads = options.getOrDefault("workloads", "demoTest,demoProhibitTest").equals("all")
+                ? new ArrayList<>(WORKLOADS.keySet())
+                : Arrays.asList(options.getOrDefault("workloads", "demoTest,demoProhibitTest").split(","));
+        List<Integer> threadCounts = options.containsKey("threads")
+                ? parseInts(options.get("threads")) : defaultThreadCounts(cores);
+        int virtualThreads = Integer.parseInt(options.getOrDefault("virtual-threads", "10000"));
+        long durationMillis = Long.parseLong(options.getOrDefault("duration", "3")) * 1000;
+        long warmupMillis = Long.parseLong(options.getOrDefault("warmup", "2")) * 1000;
+
+        ThreadFactory virtualThreadFactory = virtualThreadFactory();
+
+        System.out.printf("Cores: %d, JVM: %s %s%n", cores,
+                System.getProperty("java.vm.name"), System.getProperty("java.version"));
+        System.out.printf("Access Warden options: %s%n%n", accessWardenOptions());
+
+        for (String name : workloads) {
+            IntUnaryOperator workload = WORKLOADS.get(name.trim());
+
+            if (workload == null)
+                throw new IllegalArgumentException("unknown workload: " + name + " (known: " + WORKLOADS.keySet() + ")");
+
+            System.out.printf("=== %s ===%n", name.trim());
+            run(workload, cores, platformThreadFactory(), false, warmupMillis, null);
+
+            System.out.printf("%-18s %14s %8s %9s %9s %9s %11s%n",
+                    "threads", "calls/s", "scaling", "p50 ns", "p99 ns", "p999 ns", "max ns");
+
+            double singleThreadThroughput = 0;
+            double bestPlatformThroughput = 0;
+
+            for (int threads : threadCounts) {
+                RunResult result = run(workload, threads, platformThreadFactory(),
+                        false, durationMillis, new ContentionRecorder());
+
+                if (threads == 1 || singleThreadThroughput == 0)
+                    singleThreadThroughput = result.throughput() / threads;
+
+                bestPlatformThroughput = Math.max(bestPlatformThroughput, result.throughput());
+                result.print(String.valueOf(threads), result.throughput() / (singleThreadThroughput * threads));
+            }
+
+            if (virtualThreads > 0) {
+                if (virtualThreadFactory == null)
+                    System.out.println("(virtual threads skipped: they require Java 21 or newer)");
+                else {
+                    RunResult result = run(workload, virtualThreads, virtualThreadFactory,
+                            true, durationMillis, new ContentionRecorder());
+
+                    // Relative to the best result of platform threads, since there are only so many carrier threads.
+                    result.print(virtualThreads + " virtual", result.throughput() / bestPlatformThroughput);
+                }
+            }
+
+            System.out.println();
+        }
+    }
+
+    private static RunResult run(IntUnaryOperator workload, int threads, ThreadFactory threadFactory,
+                                 boolean yieldBetweenBatches, long durationMillis,
+                                 ContentionRecorder recorder) throws Exception {
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        RunControl control = new RunControl();
+        Worker[] workers = new Worker[threads];
+        Thread[] workerThreads = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(workload, yieldBetweenBatches, ready, go, control);
+            workerThreads[i] = threadFactory.newThread(workers[i]);
+            workerThreads[i].start();
+        }
+
+        ready.await();
+
+        if (recorder != null) {
+            recorder.start();
+            recorder.markStart();
+        }
+
+        long start = System.nanoTime();
+        go.countDown();
+        Thread.sleep(durationMillis);
+        control.stopped = true;
+        long elapsedNanos = System.nanoTime() - start;
+
+        List<ContentionRecorder.Contention> contentions = Collections.emptyList();
+
+        if (recorder != null) {
+            try {
+                contentions = recorder.stop();
+            } finally {
+                recorder.close();
+            }
+        }
+
+        LatencyHistogram latencies = new LatencyHistogram();
+
+        for (int i = 0; i < threads; i++) {
+            workerThreads[i].join();
+
+            if (workers[i].failure != null)
+                throw new IllegalStateException("a call failed - is the workload permitted?", workers[i].failure);
+
+            latencies.add(workers[i].latencies);
+        }
+
+        return new RunResult(latencies, elapsedNanos, contentions);
+    }
+
+    private static ThreadFactory platformThreadFactory() {
+        AtomicInteger counter = new AtomicInteger();
+
+        return runnable -> {
+            Thread thread = new Thread(runnable, "access-warden-harness-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @return {@code Thread.ofVirtual().factory()}, or {@code null} if this JVM has no virtual threads.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    private static List<Integer> defaultThreadCounts(int cores) {
+        List<Integer> threadCounts = new ArrayList<>();
+
+        for (int threads = 1; threads < cores; threads *= 2)
+            threadCounts.add(threads);
+
+        threadCounts.add(cores);
+        return threadCounts;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length)
+                throw new IllegalArgumentException("expected \"--option value\" pairs, got: " + Arrays.toString(args));
+
+            options.put(args[i].substring(2), args[++i]);
+        }
+
+        return options;
+    }
+
+    private static List<Integer> parseInts(String s) {
+        List<Integer> ints = new ArrayList<>();
+
+        for (String part : s.split(","))
+            ints.add(Integer.parseInt(part.trim()));
+
+        return ints;
+    }
+
+    private static Map<String, String> accessWardenOptions() {
+        Map<String, String> options = new TreeMap<>();
+
+        for (String name : System.getProperties().stringPropertyNames())
+            if (name.startsWith("accesswarden."))
+                options.put(name, System.getProperty(name));
+
+        return options;
+    }
+
+    private static final class RunControl {
+        volatile boolean stopped;
+    }
+
+    private static final class Worker implements Runnable {
+        private final IntUnaryOperator workload;
+        private final boolean yieldBetweenBatches;
+        private final CountDownLatch ready;
+        private final CountDownLatch go;
+        private final RunControl control;
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        private Throwable failure;
+
+        /**
+         * Keeps the results of calls alive.
+         */
+        private int sink;
+
+        private Worker(IntUnaryOperator workload, boolean yieldBetweenBatches,
+                       CountDownLatch ready, CountDownLatch go, RunControl control) {
+            this.workload = workload;
+            this.yieldBetweenBatches = yieldBetweenBatches;
+            this.ready = ready;
+            this.go = go;
+            this.control = control;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ready.countDown();
+                go.await();
+                int x = 0;
+
+                while (!control.stopped) {
+                    for (int i = 0; i < BATCH_SIZE; i++) {
+                        long start = System.nanoTime();
+                        x = workload.applyAsInt(x);
+                        latencies.record(System.nanoTime() - start);
+                    }
+
+                    if (yieldBetweenBatches)
+                        Thread.yield();
+                }
+
+                sink = x;
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+    }
+
+    private static final class RunResult {
+        private final LatencyHistogram latencies;
+        private final long elapsedNanos;
+        private final List<ContentionRecorder.Contention> contentions;
+
+        private RunResult(LatencyHistogram latencies, long elapsedNanos,
+                          List<ContentionRecorder.Contention> contentions) {
+            this.latencies = latencies;
+            this.elapsedNanos = elapsedNanos;
+            this.contentions = contentions;
+        }
+
+        private double throughput() {
+            return latencies.totalCount() * 1e9 / elapsedNanos;
+        }
+
+        private void print(String threads, double scaling) {
+            System.out.printf("%-18s %14.0f %7.1f%% %9d %9d %9d %11d%n", threads, throughput(), scaling * 100,
+                    latencies.percentile(50), latencies.percentile(99), latencies.percentile(99.9), latencies.max());
+
+            for (int i = 0; i < Math.min(contentions.size(), TOP_CONTENTIONS); i++) {
+                ContentionRecorder.Contention contention = contentions.get(i);
+                System.out.printf("    contended: %s (%d times, %.3f ms in total)%n",
+                        contention.where, contention.count, contention.totalNanos / 1e6);
+            }
+
+            if (contentions.size() > TOP_CONTENTIONS)
+                System.out.printf("    ... and %d more contention points%n", contentions.size() - TOP_CONTENTIONS);
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.benchmarks;
+
+/**
+ * Runs benchmarked code at a given depth of the call stack (on top of whatever frames JMH itself has).
+ */
+final class Stacks {
+
+    private Stacks() {}
+
+    @FunctionalInterface
+    interface Action<T> {
+        T run() throws Exception;
+    }
+
+    static <T> T atDepth(int depth, Action<T> action) throws Exception {
+        return depth <= 0 ? action.run() : atDepth(depth - 1, action);
+    }
+
+}
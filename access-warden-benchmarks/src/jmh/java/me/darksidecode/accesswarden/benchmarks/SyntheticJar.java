@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.benchmarks;
+
+import me.darksidecode.accesswarden.api.RestrictedCall;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Generates jars of synthetic classes to be transformed by Access Warden Core, so that the transformation can be
+ * measured on jars of any size without shipping (or downloading) real ones. The contents only depend on the
+ * arguments, so the same arguments always produce the same jar.
+ * <p>
+ * Each class has the specified number of static methods, the last of which are annotated with {@link RestrictedCall}
+ * (with policies of a few different shapes, in turn). Every method except for the last one calls the next one, so
+ * that the jar contains calls of protected methods as well. Classes are spread over packages of 100 classes each.
+ * <p>
+ * Can also be run from the command line, to get a jar for transforming it with Access Warden Core directly:
+ * <pre>
+ *     java ... SyntheticJar &lt;output jar&gt; &lt;classes&gt; &lt;methods per class&gt; &lt;annotated methods per class&gt;
+ * </pre>
+ */
+public final class SyntheticJar {
+
+    private static final int CLASSES_PER_PACKAGE = 100;
+
+    private static final String RESTRICTED_CALL_DESC = Type.getDescriptor(RestrictedCall.class);
+
+    private SyntheticJar() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println("Usage: SyntheticJar <output jar> <classes> <methods per class> "
+                    + "<annotated methods per class>");
+            System.exit(1);
+            return;
+        }
+
+        File file = new File(args[0]);
+        write(file, Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+        System.out.println("Generated " + file.getAbsolutePath() + " (" + file.length() + " bytes)");
+    }
+
+    public static void write(File file, int classes, int methodsPerClass,
+                             int annotatedMethodsPerClass) throws IOException {
+        if (classes < 1)
+            throw new IllegalArgumentException("classes must be positive");
+
+        if (methodsPerClass < 1)
+            throw new IllegalArgumentException("methodsPerClass must be positive");
+
+        if (annotatedMethodsPerClass < 0 || annotatedMethodsPerClass > methodsPerClass)
+            throw new IllegalArgumentException("annotatedMethodsPerClass must be in range [0; methodsPerClass]");
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+
+        try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(file), manifest)) {
+            for (int i = 0; i < classes; i++) {
+                String className = String.format("synthetic/p%03d/C%05d", i / CLASSES_PER_PACKAGE, i);
+                jar.putNextEntry(new JarEntry(className + ".class"));
+                jar.write(generateClass(className, methodsPerClass, annotatedMethodsPerClass));
+                jar.closeEntry();
+            }
+        }
+    }
+
+    private static byte[] generateClass(String className, int methods, int annotatedMethods) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, "java/lang/Object", null);
+        cw.visitSource(className.substring(className.lastIndexOf('/') + 1) + ".java", null);
+
+        MethodVisitor init = cw.visitMethod(ACC_PRIVATE, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        for (int m = 0; m < methods; m++) {
+            MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "m" + m, "(I)I", null, null);
+
+            if (m >= methods - annotatedMethods)
+                visitRestrictedCall(mv.visitAnnotation(RESTRICTED_CALL_DESC, true), m);
+
+            // return m<m + 1>(x * 31 + m)  -  or just the expression, for the last method.
+            mv.visitCode();
+            mv.visitVarInsn(ILOAD, 0);
+            mv.visitIntInsn(BIPUSH, 31);
+            mv.visitInsn(IMUL);
+            mv.visitLdcInsn(m);
+            mv.visitInsn(IADD);
+
+            if (m < methods - 1)
+                mv.visitMethodInsn(INVOKESTATIC, className, "m" + (m + 1), "(I)I", false);
+
+            mv.visitInsn(IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void visitRestrictedCall(AnnotationVisitor av, int method) {
+        switch (method % 3) {
+            case 0:
+                av.visit("prohibitArbitraryInvocation", true);
+                visitArray(av, "permittedSources", "synthetic.*");
+                break;
+
+            case 1:
+                visitArray(av, "prohibitedSources", "org.example.untrusted.*", "*.Exploit#*");
+                break;
+
+            default:
+                av.visit("prohibitReflectionTraces", true);
+                av.visit("prohibitNativeTraces", true);
+                break;
+        }
+
+        av.visitEnd();
+    }
+
+    private static void visitArray(AnnotationVisitor av, String name, String... values) {
+        AnnotationVisitor array = av.visitArray(name);
+
+        for (String value : values)
+            array.visit(null, value);
+
+        array.visitEnd();
+    }
+
+}
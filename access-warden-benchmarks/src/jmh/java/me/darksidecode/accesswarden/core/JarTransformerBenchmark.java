@@ -0,0 +1,181 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.core;
+
+import me.darksidecode.accesswarden.benchmarks.SyntheticJar;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each phase of {@link JarTransformer} ({@code read}, {@code apply}, {@code save}) separately, and all of them
+ * together, on jars generated with {@link SyntheticJar}. The phases that precede the measured one are run in the
+ * (unmeasured) setup of each invocation, on a fresh copy of the generated jar.
+ * <p>
+ * Besides the time of each phase, reports the number of classes processed per second (the "classes" secondary
+ * result) and, with {@link me.darksidecode.accesswarden.benchmarks.PeakHeapProfiler}, the peak heap usage.
+ * <p>
+ * Unless checkers are linked with {@code invokedynamic} ("accesswarden.indyCheckers"), all of them go into a single
+ * generated class, which only fits about 6000 of them - {@code save} fails with larger jars. Keep
+ * {@code classes * annotatedMethodsPerClass} below that when overriding the parameters in other modes.
+ * <p>
+ * This class is in the package of {@link JarTransformer}, because that is package-private.
+ */
+@BenchmarkMode ({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 2, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (value = 1, jvmArgsAppend = "-Xmx2g")
+public class JarTransformerBenchmark {
+
+    @State (Scope.Thread)
+    public static class SyntheticJarState {
+        @Param ({ "1000", "5000" })
+        public int classes;
+
+        @Param ({ "10" })
+        public int methodsPerClass;
+
+        @Param ({ "0", "1" })
+        public int annotatedMethodsPerClass;
+
+        private File directory;
+
+        private File pristineJar;
+
+        private File workJar;
+
+        @Setup (Level.Trial)
+        public void generate() throws IOException {
+            directory = Files.createTempDirectory("access-warden-benchmarks").toFile();
+            pristineJar = new File(directory, "synthetic.jar");
+            workJar = new File(directory, "work.jar");
+            SyntheticJar.write(pristineJar, classes, methodsPerClass, annotatedMethodsPerClass);
+        }
+
+        @TearDown (Level.Trial)
+        public void delete() throws IOException {
+            FileUtils.deleteDirectory(directory);
+        }
+
+        JarTransformer newTransformer() throws IOException {
+            // JarTransformer replaces the jar it transforms, so give it a copy.
+            Files.copy(pristineJar.toPath(), workJar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return new JarTransformer(workJar);
+        }
+    }
+
+    /**
+     * The number of classes processed, reported by JMH as a rate.
+     */
+    @State (Scope.Thread)
+    @AuxCounters (AuxCounters.Type.OPERATIONS)
+    public static class ClassCounter {
+        public long classes;
+
+        @Setup (Level.Iteration)
+        public void reset() {
+            classes = 0;
+        }
+    }
+
+    /**
+     * A {@link JarTransformer} of a fresh copy of the generated jar, prepared for one invocation.
+     */
+    public abstract static class PreparedTransformer {
+        JarTransformer transformer;
+
+        @TearDown (Level.Invocation)
+        public void close() {
+            if (transformer.state() != JarTransformer.State.CREATED)
+                transformer.close();
+        }
+    }
+
+    @State (Scope.Thread)
+    public static class Created extends PreparedTransformer {
+        @Setup (Level.Invocation)
+        public void create(SyntheticJarState jar) throws IOException {
+            transformer = jar.newTransformer();
+        }
+    }
+
+    @State (Scope.Thread)
+    public static class Read extends PreparedTransformer {
+        @Setup (Level.Invocation)
+        public void createAndRead(SyntheticJarState jar) throws IOException {
+            transformer = jar.newTransformer();
+            transformer.read();
+            expectState(transformer, JarTransformer.State.READ);
+        }
+    }
+
+    @State (Scope.Thread)
+    public static class Transformed extends PreparedTransformer {
+        @Setup (Level.Invocation)
+        public void createReadAndApply(SyntheticJarState jar) throws IOException {
+            transformer = jar.newTransformer();
+            transformer.read();
+            transformer.apply();
+            expectState(transformer, JarTransformer.State.TRANSFORMED);
+        }
+    }
+
+    @Benchmark
+    public void read(SyntheticJarState jar, Created created, ClassCounter counter) {
+        created.transformer.read();
+        expectState(created.transformer, JarTransformer.State.READ);
+        counter.classes += jar.classes;
+    }
+
+    @Benchmark
+    public void apply(SyntheticJarState jar, Read read, ClassCounter counter) {
+        read.transformer.apply();
+        expectState(read.transformer, JarTransformer.State.TRANSFORMED);
+        counter.classes += jar.classes;
+    }
+
+    @Benchmark
+    public void save(SyntheticJarState jar, Transformed transformed, ClassCounter counter) {
+        transformed.transformer.save();
+        expectState(transformed.transformer, JarTransformer.State.SAVED);
+        counter.classes += jar.classes;
+    }
+
+    @Benchmark
+    public void transform(SyntheticJarState jar, Created created, ClassCounter counter) {
+        created.transformer.read();
+        created.transformer.apply();
+        created.transformer.save();
+        expectState(created.transformer, JarTransformer.State.SAVED);
+        counter.classes += jar.classes;
+    }
+
+    private static void expectState(JarTransformer transformer, JarTransformer.State expected) {
+        // JarTransformer logs errors instead of throwing them, so a failed phase would otherwise look very fast.
+        if (transformer.state() != expected)
+            throw new IllegalStateException("JarTransformer is in state " + transformer.state()
+                    + " instead of " + expected + " (see the log for details)");
+    }
+
+}
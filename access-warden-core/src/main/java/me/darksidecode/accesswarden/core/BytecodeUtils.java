@@ -97,4 +97,18 @@ final class BytecodeUtils implements Opcodes {
         }
     }
 
+    /**
+     * Generates the beginning of a checker method that returns right away if the current thread is
+     * stamped with the specified caller stamp token. Must be the very first code of the method.
+     */
+    static void generateConsumeCallerStamp(MethodVisitor mv, String tokenFieldName) {
+        Label notStamped = new Label();
+        mv.visitFieldInsn(GETSTATIC, CHECKER_CLASS_NAME, tokenFieldName, "Ljava/lang/Object;");
+        mv.visitMethodInsn(INVOKESTATIC, "me/darksidecode/accesswarden/api/CallerStamps", "consume", "(Ljava/lang/Object;)Z", false);
+        mv.visitJumpInsn(IFEQ, notStamped);
+        mv.visitInsn(RETURN);
+        mv.visitLabel(notStamped);
+        mv.visitFrame(F_SAME, 0, null, 0, null);
+    }
+
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.core;
+
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * Rewrites calls that permitted sources of stamped policies (see {@link StampedPolicy}) make to the
+ * protected methods, so that they go through a <i>stamping bridge</i> - a synthetic method of the caller
+ * class that stamps the current thread with the token of the policy, calls the protected method, and
+ * clears the stamp, however the call completes.
+ * <p>
+ * Bridges are never called by anything but the permitted source they were generated for (or by other
+ * permitted methods of the same class), so the token always proves that the direct caller is permitted.
+ */
+final class CallerStampingVisitor implements TransformingVisitor {
+
+    private final Map<String, ClassNode> classesByName = new HashMap<>();
+
+    private final Collection<StampedPolicy> stampedPolicies;
+
+    /**
+     * "owner.name desc" of a protected method -> its stamped policy. Built on the first visitClass call,
+     * when RestrictedCallVisitor has already registered all stamped policies.
+     */
+    private Map<String, StampedPolicy> policiesByMethod;
+
+    /**
+     * Stamped policy -> the bridge generated for it in the class that is currently being visited.
+     */
+    private final Map<StampedPolicy, MethodNode> bridges = new LinkedHashMap<>();
+
+    private ClassNode cls;
+
+    CallerStampingVisitor(Collection<ClassNode> classes, Collection<StampedPolicy> stampedPolicies) {
+        for (ClassNode cls : classes)
+            classesByName.put(cls.name, cls);
+
+        this.stampedPolicies = stampedPolicies;
+    }
+
+    @Override
+    public void visitClass(ClassNode cls) throws Exception {
+        if (policiesByMethod == null) {
+            policiesByMethod = new HashMap<>();
+
+            for (StampedPolicy policy : stampedPolicies)
+                policiesByMethod.put(policy.owner + "." + policy.name + " " + policy.desc, policy);
+        }
+
+        bridges.clear();
+        this.cls = cls;
+    }
+
+    @Override
+    public void visitMethod(MethodNode mtd) throws Exception {
+        // Private static methods of interfaces are not supported by all class file versions.
+        if (policiesByMethod.isEmpty() || (cls.access & ACC_INTERFACE) != 0)
+            return;
+
+        for (AbstractInsnNode insn : mtd.instructions.toArray()) {
+            if (!(insn instanceof MethodInsnNode))
+                continue;
+
+            MethodInsnNode call = (MethodInsnNode) insn;
+            StampedPolicy policy = policiesByMethod.get(call.owner + "." + call.name + " " + call.desc);
+
+            if (policy != null && policy.isPermittedCaller(cls.name, mtd.name) && canBridge(call, policy)) {
+                MethodNode bridge = bridges.computeIfAbsent(policy, p -> createBridge(p, call));
+                mtd.instructions.set(call, new MethodInsnNode(INVOKESTATIC, cls.name, bridge.name, bridge.desc, false));
+            }
+        }
+    }
+
+    @Override
+    public void visitClassEnd() throws Exception {
+        cls.methods.addAll(bridges.values());
+    }
+
+    @Override
+    public boolean anythingModified() {
+        return !bridges.isEmpty();
+    }
+
+    private boolean canBridge(MethodInsnNode call, StampedPolicy policy) {
+        switch (call.getOpcode()) {
+            case INVOKESTATIC:
+                // The protected class (and its superclasses) may have to be initialized on the call,
+                // after the stamp is already set - and their static initializers must not be able
+                // to consume it. Calls from the protected class itself never initialize anything.
+                return policy.isStatic && (cls.name.equals(policy.owner) || initializerFree(policy.owner));
+
+            case INVOKESPECIAL:
+                // Private methods called by their own class. Bridges cannot make "super" calls.
+                return !policy.isStatic && cls.name.equals(policy.owner);
+
+            default:
+                return !policy.isStatic;
+        }
+    }
+
+    private boolean initializerFree(String className) {
+        while (!className.equals("java/lang/Object")) {
+            ClassNode classNode = classesByName.get(className);
+
+            if (classNode == null || classNode.methods.stream().anyMatch(mtd -> mtd.name.equals("<clinit>")))
+                return false;
+
+            className = classNode.superName;
+        }
+
+        return true;
+    }
+
+    private MethodNode createBridge(StampedPolicy policy, MethodInsnNode call) {
+        String desc = policy.isStatic ? call.desc : "(L" + call.owner + ";" + call.desc.substring(1);
+        MethodNode bridge = new MethodNode(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC,
+                "__stamped__" + policy.checkerId + "__", desc, null, null);
+
+        Type[] argTypes = Type.getArgumentTypes(desc);
+        Type returnType = Type.getReturnType(desc);
+        Object[] frameLocals = new Object[argTypes.length];
+        LabelNode callStart = new LabelNode();
+        LabelNode callEnd = new LabelNode();
+        LabelNode callFailed = new LabelNode();
+        InsnList insns = bridge.instructions;
+
+        insns.add(new MethodInsnNode(INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;", false));
+        insns.add(new MethodInsnNode(INVOKESTATIC, BytecodeUtils.CHECKER_CLASS_NAME, policy.stampMethods.get(cls.name), "(Ljava/lang/invoke/MethodHandles$Lookup;)V", false));
+        insns.add(callStart);
+
+        int argsSize = 0;
+
+        for (int i = 0; i < argTypes.length; i++) {
+            insns.add(new VarInsnNode(argTypes[i].getOpcode(ILOAD), argsSize));
+            frameLocals[i] = frameType(argTypes[i]);
+            argsSize += argTypes[i].getSize();
+        }
+
+        insns.add(new MethodInsnNode(call.getOpcode(), call.owner, call.name, call.desc, call.itf));
+        insns.add(callEnd);
+        insns.add(new MethodInsnNode(INVOKESTATIC, "me/darksidecode/accesswarden/api/CallerStamps", "clear", "()V", false));
+        insns.add(new InsnNode(returnType.getOpcode(IRETURN)));
+
+        // The protected method consumes the stamp when it is entered, but the call may fail before
+        // that (for example, with a NullPointerException or a StackOverflowError) - clear it then, too.
+        insns.add(callFailed);
+        insns.add(new FrameNode(F_NEW, frameLocals.length, frameLocals, 1, new Object[] { "java/lang/Throwable" }));
+        insns.add(new MethodInsnNode(INVOKESTATIC, "me/darksidecode/accesswarden/api/CallerStamps", "clear", "()V", false));
+        insns.add(new InsnNode(ATHROW));
+
+        bridge.tryCatchBlocks.add(new TryCatchBlockNode(callStart, callEnd, callFailed, null));
+        bridge.maxLocals = argsSize;
+        bridge.maxStack = Math.max(1, Math.max(argsSize, returnType.getSize()));
+
+        return bridge;
+    }
+
+    private static Object frameType(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+                return INTEGER;
+
+            case Type.FLOAT:
+                return FLOAT;
+
+            case Type.LONG:
+                return LONG;
+
+            case Type.DOUBLE:
+                return DOUBLE;
+
+            default:
+                return type.getInternalName();
+        }
+    }
+
+}
@@ -90,15 +90,20 @@ final class JarTransformer {
 
         checkerClassWriter = BytecodeUtils.beginCreateCheckerClass();
 
+        Collection<StampedPolicy> stampedPolicies = new ArrayList<>();
         Collection<TransformingVisitor> transformers = Arrays.asList(
-                new RestrictedCallVisitor(checkerClassWriter)
+                new RestrictedCallVisitor(checkerClassWriter, stampedPolicies),
+                new CallerStampingVisitor(classes, stampedPolicies)
         );
 
         log.info("Applying transformations to {} classes with {} visitors",
                 classes.size(), transformers.size());
 
-        for (ClassNode cls : classes) {
-            for (TransformingVisitor transformer : transformers) {
+        // Each visitor visits all classes before the next one starts, so that visitors can rely on
+        // everything the previous ones found in the jar (for example, CallerStampingVisitor needs
+        // to know all stamped policies before it rewrites any calls).
+        for (TransformingVisitor transformer : transformers) {
+            for (ClassNode cls : classes) {
                 try {
                     transformer.visitClass(cls);
                 } catch (Exception ex) {
@@ -124,6 +129,13 @@ final class JarTransformer {
                     }
                 }
 
+                try {
+                    transformer.visitClassEnd();
+                } catch (Exception ex) {
+                    log.warn("Error in visitClassEnd({}) of transformer {}: {}",
+                            cls.name, transformer.getClass().getName(), ex.toString());
+                }
+
                 if (transformer.anythingModified()) {
                     log.info("Modified something in class {}", cls.name);
                     modifiedClasses.put(cls.name + ".class", cls);
@@ -131,6 +143,15 @@ final class JarTransformer {
             }
         }
 
+        for (TransformingVisitor transformer : transformers) {
+            try {
+                transformer.visitEnd();
+            } catch (Exception ex) {
+                log.warn("Error in visitEnd() of transformer {}: {}",
+                        transformer.getClass().getName(), ex.toString());
+            }
+        }
+
         checkerClassWriter.visitEnd();
         currentState = State.TRANSFORMED;
     }
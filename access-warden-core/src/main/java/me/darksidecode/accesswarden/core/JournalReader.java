@@ -0,0 +1,262 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package me.darksidecode.accesswarden.core;
+
+import me.darksidecode.accesswarden.api.JournalSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reads violation journals written by {@link JournalSink} offline, and either prints
+ * their events one by one, or aggregates them by policy and by caller.
+ * <p>
+ * Usage: {@code JournalReader [--events] <journal directory or segment file>...}
+ */
+public final class JournalReader {
+
+    private static final Logger log = LoggerFactory.getLogger(JournalReader.class);
+
+    /**
+     * The number of policies and callers to print in aggregate reports.
+     */
+    private static final int TOP_ENTRIES = 20;
+
+    private JournalReader() {}
+
+    public static void main(String[] args) {
+        boolean printEvents = false;
+        List<Path> paths = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.equals("--events"))
+                printEvents = true;
+            else
+                paths.add(Paths.get(arg));
+        }
+
+        if (paths.isEmpty()) {
+            log.error("Usage: JournalReader [--events] <journal directory or segment file>...");
+            System.exit(1);
+            return;
+        }
+
+        try {
+            List<Path> segments = listSegments(paths);
+
+            if (printEvents) {
+                for (Path segment : segments)
+                    read(segment, event -> System.out.println(event));
+            } else {
+                Aggregate aggregate = new Aggregate();
+
+                for (Path segment : segments)
+                    read(segment, aggregate);
+
+                aggregate.print();
+            }
+        } catch (IOException ex) {
+            log.error("Failed to read the journal: {}", ex.toString());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the segment files among the specified paths and in the specified directories, oldest first.
+     */
+    static List<Path> listSegments(List<Path> paths) throws IOException {
+        List<Path> segments = new ArrayList<>();
+
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.list(path)) {
+                    files.filter(file -> JournalSink.sequenceNumber(file) >= 0)
+                         .sorted(Comparator.comparingLong(JournalSink::sequenceNumber))
+                         .forEach(segments::add);
+                }
+            } else
+                segments.add(path);
+        }
+
+        return segments;
+    }
+
+    /**
+     * Streams the events of the specified segment to the specified consumer, in the order they were written in.
+     * A truncated last record (which can only be there if the segment is still being written to) is ignored.
+     *
+     * @throws IOException if the segment could not be read, or is not a journal segment.
+     */
+    static void read(Path segmentFile, Consumer<Event> consumer) throws IOException {
+        MappedByteBuffer segment;
+
+        try (FileChannel channel = FileChannel.open(segmentFile)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (segment.remaining() < JournalSink.HEADER_SIZE || segment.getInt() != JournalSink.MAGIC)
+            throw new IOException("not a journal segment: " + segmentFile);
+
+        int version = segment.getInt();
+
+        if (version != JournalSink.VERSION)
+            throw new IOException("unsupported journal version " + version + ": " + segmentFile);
+
+        segment.getLong(); // creation time
+
+        // String id -> string. Ids are assigned sequentially, starting with 1.
+        List<String> strings = new ArrayList<>();
+        strings.add(null);
+
+        try {
+            while (segment.hasRemaining()) {
+                byte tag = segment.get();
+
+                if (tag == JournalSink.TAG_END)
+                    break;
+
+                if (tag == JournalSink.TAG_STRING) {
+                    int id = segment.getInt();
+                    byte[] bytes = new byte[segment.getShort() & 0xFFFF];
+                    segment.get(bytes);
+
+                    if (id != strings.size())
+                        throw new IOException("corrupted journal segment (unexpected string id "
+                                + id + "): " + segmentFile);
+
+                    strings.add(new String(bytes, StandardCharsets.UTF_8));
+                } else if (tag == JournalSink.TAG_EVENT) {
+                    byte flags = segment.get();
+                    segment.getShort(); // reserved
+                    String policyId = string(strings, segment.getInt(), segmentFile);
+                    String className = string(strings, segment.getInt(), segmentFile);
+                    String methodName = string(strings, segment.getInt(), segmentFile);
+                    long timestampMillis = segment.getLong();
+                    long threadId = segment.getLong();
+
+                    consumer.accept(new Event(policyId, className, methodName, timestampMillis, threadId,
+                            (flags & JournalSink.FLAG_DENIED) != 0));
+                } else
+                    throw new IOException("corrupted journal segment (unknown record tag "
+                            + tag + "): " + segmentFile);
+            }
+        } catch (BufferUnderflowException ex) {
+            log.warn("Ignoring a truncated record at the end of {}", segmentFile);
+        }
+    }
+
+    private static String string(List<String> strings, int id, Path segmentFile) throws IOException {
+        if (id < 0 || id >= strings.size())
+            throw new IOException("corrupted journal segment (undefined string id " + id + "): " + segmentFile);
+
+        return strings.get(id);
+    }
+
+    static final class Event {
+        final String policyId;
+        final String className;
+        final String methodName;
+        final long timestampMillis;
+        final long threadId;
+        final boolean denied;
+
+        private Event(String policyId, String className, String methodName,
+                      long timestampMillis, long threadId, boolean denied) {
+            this.policyId = policyId;
+            this.className = className;
+            this.methodName = methodName;
+            this.timestampMillis = timestampMillis;
+            this.threadId = threadId;
+            this.denied = denied;
+        }
+
+        String caller() {
+            return className == null ? "<unknown>" : className + "#" + methodName;
+        }
+
+        @Override
+        public String toString() {
+            return Instant.ofEpochMilli(timestampMillis) + " thread " + threadId + (denied ? " DENIED " : " AUDIT ")
+                    + (policyId == null ? "<unknown>" : policyId) + " <- " + caller();
+        }
+    }
+
+    private static final class Aggregate implements Consumer<Event> {
+        private final Map<String, Long> eventsByPolicy = new HashMap<>();
+        private final Map<String, Long> eventsByCaller = new HashMap<>();
+        private final Set<Long> threadIds = new HashSet<>();
+        private long events;
+        private long denials;
+        private long firstTimestamp = Long.MAX_VALUE;
+        private long lastTimestamp = Long.MIN_VALUE;
+
+        @Override
+        public void accept(Event event) {
+            events++;
+
+            if (event.denied)
+                denials++;
+
+            eventsByPolicy.merge(event.policyId == null ? "<unknown>" : event.policyId, 1L, Long::sum);
+            eventsByCaller.merge(event.caller(), 1L, Long::sum);
+            threadIds.add(event.threadId);
+            firstTimestamp = Math.min(firstTimestamp, event.timestampMillis);
+            lastTimestamp = Math.max(lastTimestamp, event.timestampMillis);
+        }
+
+        private void print() {
+            System.out.println("Events: " + events + " (" + denials + " denied, "
+                    + (events - denials) + " audited), threads: " + threadIds.size());
+
+            if (events == 0)
+                return;
+
+            System.out.println("Time range: " + Instant.ofEpochMilli(firstTimestamp)
+                    + " - " + Instant.ofEpochMilli(lastTimestamp));
+            printTop("Top policies", eventsByPolicy);
+            printTop("Top callers", eventsByCaller);
+        }
+
+        private static void printTop(String title, Map<String, Long> counts) {
+            System.out.println();
+            System.out.println(title + " (of " + counts.size() + "):");
+
+            List<Map.Entry<String, Long>> top = counts.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                    .limit(TOP_ENTRIES)
+                    .collect(Collectors.toList());
+
+            for (Map.Entry<String, Long> entry : top)
+                System.out.printf("%12d  %s%n", entry.getValue(), entry.getKey());
+        }
+    }
+
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.core;
+
+import me.darksidecode.accesswarden.api.ContextResolution;
+import me.darksidecode.accesswarden.api.RestrictedCall;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.List;
+
+/**
+ * Compiles policies into specialized checker methods: instead of passing a {@link RestrictedCall.Configuration}
+ * to the generic {@link ContextResolution#ensureCallPermitted(int, RestrictedCall.Configuration)}, the generated
+ * method inspects the call stack itself, with the glob patterns of the policy unrolled into plain string
+ * comparisons ({@link String#equals(Object)}, {@link String#startsWith(String)} and {@link String#endsWith(String)})
+ * wherever possible.
+ * <p>
+ * Verdicts and denial messages are exactly the same as those of the generic checkers. Compiled checkers do not
+ * support the features of the generic checkers that need runtime state, and leave the check to the generic
+ * checker while any of these is in use (see CompiledChecks#mustCheckGenerically() in the API module).
+ */
+final class PolicyCompiler implements Opcodes {
+
+    /**
+     * Set this system property to "true" during transformation to compile policies into specialized checkers.
+     * Policies with options that compiled checkers do not support (see {@link #canCompile(RestrictedCall.Configuration)})
+     * are still checked generically, and so are all calls while permits, denial breakers ("accesswarden.denialBreaker"),
+     * sampling of all checks ("accesswarden.sampleChecks") or JFR recording of checks are in use at runtime.
+     * Compiled checks never skip the frames of protected methods whose checks have already passed.
+     */
+    static final boolean COMPILE_CHECKERS = Boolean.getBoolean("accesswarden.compileCheckers");
+
+    private static final String SUPPORT = "me/darksidecode/accesswarden/api/CompiledChecks";
+
+    private static final String CTX = "me/darksidecode/accesswarden/api/FilteredContext";
+
+    // Local variables of the compiled checker methods. All of them are initialized at
+    // the very beginning, so that every stack map frame can describe all of them the same way.
+    private static final int VAR_CTX   = 0;
+    private static final int VAR_I     = 1;
+    private static final int VAR_FRAME = 2;
+    private static final int VAR_CLS   = 3;
+    private static final int VAR_MTD   = 4;
+    private static final int VAR_PLAIN = 5;
+    private static final int VAR_START = 6; // long, takes two slots
+
+    private static final Object[] LOCALS = {
+            CTX, INTEGER, "java/lang/StackTraceElement", "java/lang/String", "java/lang/String", INTEGER, LONG
+    };
+
+    private static final int MAX_LOCALS = 8;
+
+    private PolicyCompiler() {}
+
+    /**
+     * Some options (ones that need runtime state) are only supported by the generic checkers.
+     */
+    static boolean canCompile(RestrictedCall.Configuration conf) {
+        return !conf.strictClassIdentity() && !conf.cacheVerdicts() && !conf.sampleChecks();
+    }
+
+    /**
+     * @param confFieldName name of the constant field of the checker class with the configuration of the policy,
+     *                      which is only used while the check must be left to the generic checker.
+     */
+    static void generateCheckerMethod(ClassWriter cw, RestrictedCall.Configuration conf, String checkerMethodName,
+                                      String confFieldName, String tokenFieldName) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC | ACC_SYNTHETIC, checkerMethodName, "()V", null, null);
+        mv.visitCode();
+
+        if (tokenFieldName != null)
+            BytecodeUtils.generateConsumeCallerStamp(mv, tokenFieldName);
+
+        generateGenericCheck(mv, conf, confFieldName);
+
+        mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "startCheck", "()J", false);
+        mv.visitVarInsn(LSTORE, VAR_START);
+
+        // The checker method sits between the protected method and ContextResolution, so the
+        // protected method frame is filtered out during the walk as well (see RestrictedCallVisitor).
+        BytecodeUtils.pushIntConstant(mv, conf.contextResolutionOptions()
+                | ContextResolution.Options.FILTER_PROTECTED_METHOD);
+        BytecodeUtils.pushIntConstant(mv, conf.contextResolutionDepth());
+        mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "resolve", "(II)L" + CTX + ";", false);
+        mv.visitVarInsn(ASTORE, VAR_CTX);
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, VAR_I);
+        mv.visitInsn(ACONST_NULL);
+        mv.visitVarInsn(ASTORE, VAR_FRAME);
+        mv.visitInsn(ACONST_NULL);
+        mv.visitVarInsn(ASTORE, VAR_CLS);
+        mv.visitInsn(ACONST_NULL);
+        mv.visitVarInsn(ASTORE, VAR_MTD);
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, VAR_PLAIN);
+
+        if (conf.exactExpectedCallStack().isEmpty())
+            generateGeneralCallStackCheck(mv, conf);
+        else
+            generateExactCallStackMatchCheck(mv, conf);
+
+        generatePolicyIdConstant(mv, conf);
+        mv.visitVarInsn(LLOAD, VAR_START);
+        mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "allowed", "(Ljava/lang/String;J)V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(5, MAX_LOCALS);
+        mv.visitEnd();
+    }
+
+    private static void generateGenericCheck(MethodVisitor mv, RestrictedCall.Configuration conf, String confFieldName) {
+        Label compiled = new Label();
+        mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "mustCheckGenerically", "()Z", false);
+        mv.visitJumpInsn(IFEQ, compiled);
+        // Same as what generic checkers do (see RestrictedCallVisitor). CompiledChecks delegates to
+        // ContextResolution, so its frame is filtered out during the walk along with ContextResolution.
+        BytecodeUtils.pushIntConstant(mv, conf.contextResolutionOptions()
+                | ContextResolution.Options.FILTER_PROTECTED_METHOD);
+        mv.visitFieldInsn(GETSTATIC, BytecodeUtils.CHECKER_CLASS_NAME, confFieldName, "Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration;");
+        mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "ensureCallPermitted", "(ILme/darksidecode/accesswarden/api/RestrictedCall$Configuration;)V", false);
+        mv.visitInsn(RETURN);
+        mv.visitLabel(compiled);
+        mv.visitFrame(F_SAME, 0, null, 0, null);
+    }
+
+    private static void generateGeneralCallStackCheck(MethodVisitor mv, RestrictedCall.Configuration conf) {
+        if (conf.prohibitReflectionTraces()) {
+            Label ok = new Label();
+            mv.visitVarInsn(ALOAD, VAR_CTX);
+            mv.visitMethodInsn(INVOKEVIRTUAL, CTX, "containsReflectionCalls", "()Z", false);
+            mv.visitJumpInsn(IFEQ, ok);
+            generateDeny(mv, conf, "call not permitted: reflection traces are prohibited");
+            visitLabelWithFrame(mv, ok);
+        }
+
+        if (conf.prohibitNativeTraces()) {
+            Label ok = new Label();
+            mv.visitVarInsn(ALOAD, VAR_CTX);
+            mv.visitMethodInsn(INVOKEVIRTUAL, CTX, "containsNativeCalls", "()Z", false);
+            mv.visitJumpInsn(IFEQ, ok);
+            generateDeny(mv, conf, "call not permitted: native traces are prohibited");
+            visitLabelWithFrame(mv, ok);
+        }
+
+        if (conf.prohibitArbitraryInvocation()) {
+            Label directCallerFound = new Label();
+            Label permitted = new Label();
+            mv.visitVarInsn(ALOAD, VAR_CTX);
+            mv.visitMethodInsn(INVOKEVIRTUAL, CTX, "mostRecentNonReflectionNonNativeCall", "()Ljava/lang/StackTraceElement;", false);
+            mv.visitVarInsn(ASTORE, VAR_FRAME);
+            mv.visitVarInsn(ALOAD, VAR_FRAME);
+            mv.visitJumpInsn(IFNONNULL, directCallerFound);
+            generateDeny(mv, conf, "call not permitted: arbitrary invocation is prohibited");
+            visitLabelWithFrame(mv, directCallerFound);
+            generateLoadFrameNames(mv, conf.permittedSources());
+
+            for (String glob : conf.permittedSources())
+                generateGlobTest(mv, glob, permitted);
+
+            generateDeny(mv, conf, "call not permitted: arbitrary invocation is prohibited");
+            visitLabelWithFrame(mv, permitted);
+        }
+
+        if (!conf.prohibitedSources().isEmpty()) {
+            // for (int i = 0; i < ctx.size(); i++)
+            Label loopCondition = new Label();
+            Label loopBody = new Label();
+            Label denied = new Label();
+            mv.visitInsn(ICONST_0);
+            mv.visitVarInsn(ISTORE, VAR_I);
+            mv.visitJumpInsn(GOTO, loopCondition);
+
+            visitLabelWithFrame(mv, loopBody);
+            mv.visitVarInsn(ALOAD, VAR_CTX);
+            mv.visitVarInsn(ILOAD, VAR_I);
+            mv.visitMethodInsn(INVOKEVIRTUAL, CTX, "frame", "(I)Ljava/lang/StackTraceElement;", false);
+            mv.visitVarInsn(ASTORE, VAR_FRAME);
+            generateLoadFrameNames(mv, conf.prohibitedSources());
+
+            for (String glob : conf.prohibitedSources())
+                generateGlobTest(mv, glob, denied);
+
+            mv.visitIincInsn(VAR_I, 1);
+            visitLabelWithFrame(mv, loopCondition);
+            mv.visitVarInsn(ILOAD, VAR_I);
+            mv.visitVarInsn(ALOAD, VAR_CTX);
+            mv.visitMethodInsn(INVOKEVIRTUAL, CTX, "size", "()I", false);
+            mv.visitJumpInsn(IF_ICMPLT, loopBody);
+
+            Label permitted = new Label();
+            mv.visitJumpInsn(GOTO, permitted);
+            visitLabelWithFrame(mv, denied);
+            generateDeny(mv, conf, "call not permitted: invocation source is prohibited");
+            visitLabelWithFrame(mv, permitted);
+        }
+    }
+
+    private static void generateExactCallStackMatchCheck(MethodVisitor mv, RestrictedCall.Configuration conf) {
+        List<String> expectedCallStack = conf.exactExpectedCallStack();
+        Label sizeOk = new Label();
+        mv.visitVarInsn(ALOAD, VAR_CTX);
+        mv.visitMethodInsn(INVOKEVIRTUAL, CTX, "size", "()I", false);
+        BytecodeUtils.pushIntConstant(mv, expectedCallStack.size());
+        mv.visitJumpInsn(IF_ICMPEQ, sizeOk);
+        generateDeny(mv, conf, "call not permitted: unexpected call stack size");
+        visitLabelWithFrame(mv, sizeOk);
+
+        // The length is fixed, so the loop over the expected frames is unrolled.
+        for (int i = 0; i < expectedCallStack.size(); i++) {
+            String glob = expectedCallStack.get(i);
+            Label matched = new Label();
+            mv.visitVarInsn(ALOAD, VAR_CTX);
+            BytecodeUtils.pushIntConstant(mv, i);
+            mv.visitMethodInsn(INVOKEVIRTUAL, CTX, "frame", "(I)Ljava/lang/StackTraceElement;", false);
+            mv.visitVarInsn(ASTORE, VAR_FRAME);
+            generateLoadFrameNames(mv, expectedCallStack.subList(i, i + 1));
+            generateGlobTest(mv, glob, matched);
+            generateDeny(mv, conf, "call not permitted: unexpected call stack frame");
+            visitLabelWithFrame(mv, matched);
+        }
+    }
+
+    /**
+     * Loads the class name and the method name of the frame stored in {@link #VAR_FRAME}
+     * into {@link #VAR_CLS} and {@link #VAR_MTD}, and, if any of the specified globs need
+     * it, whether they are "plain" or not into {@link #VAR_PLAIN}.
+     */
+    private static void generateLoadFrameNames(MethodVisitor mv, List<String> globs) {
+        mv.visitVarInsn(ALOAD, VAR_FRAME);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StackTraceElement", "getClassName", "()Ljava/lang/String;", false);
+        mv.visitVarInsn(ASTORE, VAR_CLS);
+        mv.visitVarInsn(ALOAD, VAR_FRAME);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StackTraceElement", "getMethodName", "()Ljava/lang/String;", false);
+        mv.visitVarInsn(ASTORE, VAR_MTD);
+
+        if (globs.stream().anyMatch(glob -> CompiledGlob.of(glob) != null && CompiledGlob.of(glob).needsPlainNames())) {
+            mv.visitVarInsn(ALOAD, VAR_CLS);
+            mv.visitVarInsn(ALOAD, VAR_MTD);
+            mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "isPlain", "(Ljava/lang/String;Ljava/lang/String;)Z", false);
+            mv.visitVarInsn(ISTORE, VAR_PLAIN);
+        }
+    }
+
+    /**
+     * Jumps to {@code matched} if the frame names loaded with {@link #generateLoadFrameNames(MethodVisitor, List)}
+     * match the specified glob, and falls through otherwise.
+     */
+    private static void generateGlobTest(MethodVisitor mv, String glob, Label matched) {
+        CompiledGlob compiled = CompiledGlob.of(glob);
+
+        if (compiled == null) {
+            generateGenericGlobTest(mv, glob, matched);
+            return;
+        }
+
+        Label notMatched = new Label();
+
+        if (compiled.needsPlainNames()) {
+            Label fallback = new Label();
+            mv.visitVarInsn(ILOAD, VAR_PLAIN);
+            mv.visitJumpInsn(IFEQ, fallback);
+            compiled.classNamePart.generateTest(mv, VAR_CLS, notMatched);
+            compiled.methodNamePart.generateTest(mv, VAR_MTD, notMatched);
+            mv.visitJumpInsn(GOTO, matched);
+            visitLabelWithFrame(mv, fallback);
+            generateGenericGlobTest(mv, glob, matched);
+        } else {
+            compiled.classNamePart.generateTest(mv, VAR_CLS, notMatched);
+            compiled.methodNamePart.generateTest(mv, VAR_MTD, notMatched);
+            mv.visitJumpInsn(GOTO, matched);
+        }
+
+        visitLabelWithFrame(mv, notMatched);
+    }
+
+    private static void generateGenericGlobTest(MethodVisitor mv, String glob, Label matched) {
+        mv.visitLdcInsn(glob);
+        mv.visitVarInsn(ALOAD, VAR_CLS);
+        mv.visitVarInsn(ALOAD, VAR_MTD);
+        mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "matches", "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)Z", false);
+        mv.visitJumpInsn(IFNE, matched);
+    }
+
+    private static void generateDeny(MethodVisitor mv, RestrictedCall.Configuration conf, String message) {
+        // Only returns (rather than throws) in audit mode, and then the call must be let through.
+        mv.visitLdcInsn(message);
+        generatePolicyIdConstant(mv, conf);
+        mv.visitInsn(conf.auditOnly() ? ICONST_1 : ICONST_0);
+        mv.visitVarInsn(LLOAD, VAR_START);
+        mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "deny", "(Ljava/lang/String;Ljava/lang/String;ZJ)V", false);
+        mv.visitInsn(RETURN);
+    }
+
+    private static void generatePolicyIdConstant(MethodVisitor mv, RestrictedCall.Configuration conf) {
+        if (conf.policyId() != null)
+            mv.visitLdcInsn(conf.policyId());
+        else
+            mv.visitInsn(ACONST_NULL);
+    }
+
+    /**
+     * Note that no two labels visited with this method may be bound to the same bytecode offset
+     * (without any instructions between them), since there can be at most one frame per offset.
+     */
+    private static void visitLabelWithFrame(MethodVisitor mv, Label label) {
+        mv.visitLabel(label);
+        mv.visitFrame(F_FULL, LOCALS.length, LOCALS, 0, new Object[0]);
+    }
+
+    /**
+     * A glob of format "classNamePart#methodNamePart" (with exactly one "#") whose both parts are
+     * either literals, or a literal prefix and/or suffix around a single "*" wildcard.
+     */
+    private static final class CompiledGlob {
+        private final Part classNamePart;
+        private final Part methodNamePart;
+
+        private CompiledGlob(Part classNamePart, Part methodNamePart) {
+            this.classNamePart = classNamePart;
+            this.methodNamePart = methodNamePart;
+        }
+
+        /**
+         * @return the compiled glob, or {@code null} if the glob must be matched generically.
+         */
+        private static CompiledGlob of(String glob) {
+            int separator = glob.indexOf('#');
+
+            if (separator == -1 || glob.indexOf('#', separator + 1) != -1
+                    || glob.indexOf('?') != -1 || containsRegexMetacharacters(glob) || containsSurrogates(glob))
+                return null;
+
+            Part classNamePart = Part.of(glob.substring(0, separator));
+            Part methodNamePart = Part.of(glob.substring(separator + 1));
+
+            return classNamePart == null || methodNamePart == null
+                    ? null : new CompiledGlob(classNamePart, methodNamePart);
+        }
+
+        private static boolean containsRegexMetacharacters(String glob) {
+            // Such globs are matched with regular expressions (see GlobMatcher in the API module).
+            for (int i = 0; i < glob.length(); i++)
+                if ("^$[](){}+|".indexOf(glob.charAt(i)) != -1)
+                    return true;
+
+            return false;
+        }
+
+        private static boolean containsSurrogates(String glob) {
+            // So are these, as a literal part that ends in the middle of a surrogate pair
+            // must not match names that continue the pair (see GlobMatcher in the API module).
+            for (int i = 0; i < glob.length(); i++)
+                if (Character.isSurrogate(glob.charAt(i)))
+                    return true;
+
+            return false;
+        }
+
+        /**
+         * Splitting at the "#" and comparing prefixes and suffixes only gives the same result as matching
+         * the whole glob if the names contain no "#" and no line terminators (which "*" does not match).
+         * Literals are compared exactly, so globs without wildcards never need that.
+         */
+        private boolean needsPlainNames() {
+            return classNamePart.wildcard || methodNamePart.wildcard;
+        }
+    }
+
+    private static final class Part {
+        private final String prefix;
+        private final String suffix;
+        private final boolean wildcard;
+
+        private Part(String prefix, String suffix, boolean wildcard) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.wildcard = wildcard;
+        }
+
+        private static Part of(String part) {
+            int star = part.indexOf('*');
+
+            if (star == -1)
+                return new Part(part, "", false);
+            else if (part.indexOf('*', star + 1) == -1)
+                return new Part(part.substring(0, star), part.substring(star + 1), true);
+            else
+                return null;
+        }
+
+        /**
+         * Jumps to {@code notMatched} if the string in the specified variable does not match this part.
+         */
+        private void generateTest(MethodVisitor mv, int var, Label notMatched) {
+            if (!wildcard) {
+                mv.visitLdcInsn(prefix);
+                mv.visitVarInsn(ALOAD, var);
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z", false);
+                mv.visitJumpInsn(IFEQ, notMatched);
+                return;
+            }
+
+            if (!prefix.isEmpty() && !suffix.isEmpty()) {
+                // The prefix and the suffix must not overlap.
+                mv.visitVarInsn(ALOAD, var);
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+                BytecodeUtils.pushIntConstant(mv, prefix.length() + suffix.length());
+                mv.visitJumpInsn(IF_ICMPLT, notMatched);
+            }
+
+            if (!prefix.isEmpty()) {
+                mv.visitVarInsn(ALOAD, var);
+                mv.visitLdcInsn(prefix);
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "startsWith", "(Ljava/lang/String;)Z", false);
+                mv.visitJumpInsn(IFEQ, notMatched);
+            }
+
+            if (!suffix.isEmpty()) {
+                mv.visitVarInsn(ALOAD, var);
+                mv.visitLdcInsn(suffix);
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "endsWith", "(Ljava/lang/String;)Z", false);
+                mv.visitJumpInsn(IFEQ, notMatched);
+            }
+        }
+    }
+
+}
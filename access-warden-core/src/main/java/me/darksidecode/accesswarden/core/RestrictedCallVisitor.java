@@ -16,21 +16,51 @@
 
 package me.darksidecode.accesswarden.core;
 
+import me.darksidecode.accesswarden.api.ContextResolution;
 import me.darksidecode.accesswarden.api.RestrictedCall;
+import me.darksidecode.accesswarden.api.RestrictedCallBootstrap;
 import me.darksidecode.accesswarden.api.UnexpectedSetupException;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
 
 final class RestrictedCallVisitor implements TransformingVisitor {
 
-    private final Set<String> takenCheckerMethodNames = new HashSet<>();
+    /**
+     * Set this system property to "true" during transformation to check calls with {@code invokedynamic}
+     * call sites linked by RestrictedCallBootstrap (in the API module), rather than with checker methods
+     * of the generated checker class. Classes older than Java 7 keep using checker methods.
+     */
+    static final boolean INDY_CHECKERS = Boolean.getBoolean("accesswarden.indyCheckers");
+
+    /**
+     * Set this system property to "true" during transformation to have calls made by the permitted sources
+     * of eligible policies stamp the current thread with a token that the checker consumes in constant time,
+     * instead of resolving the call stack (see CallerStamps in the API module, and CallerStampingVisitor).
+     * Only applies to checker methods (not {@code invokedynamic} checks), and the policy is still checked
+     * as usual for calls that do not carry the token.
+     */
+    static final boolean STAMP_CALLERS = Boolean.getBoolean("accesswarden.stampCallers");
+
+    private final Set<String> takenCheckerIds = new HashSet<>();
+
+    /**
+     * Configuration constant field name -> name of the method that builds that configuration.
+     */
+    private final Map<String, String> configuredFields = new LinkedHashMap<>();
+
+    /**
+     * Names of caller stamp token constant fields.
+     */
+    private final List<String> tokenFields = new ArrayList<>();
+
+    private final Collection<StampedPolicy> stampedPolicies;
 
     private final String annoDesc;
 
@@ -38,14 +68,27 @@ final class RestrictedCallVisitor implements TransformingVisitor {
 
     private boolean anythingModified;
 
-    RestrictedCallVisitor(ClassWriter checkerClassWriter) {
+    /**
+     * Major version of the class file that is currently being visited.
+     */
+    private int classVersion;
+
+    /**
+     * The class that is currently being visited.
+     */
+    private ClassNode cls;
+
+    RestrictedCallVisitor(ClassWriter checkerClassWriter, Collection<StampedPolicy> stampedPolicies) {
         annoDesc = BytecodeUtils.describeAnnotation(RestrictedCall.class);
         cw = checkerClassWriter;
+        this.stampedPolicies = stampedPolicies;
     }
 
     @Override
     public void visitClass(ClassNode cls) throws Exception {
         anythingModified = false;
+        classVersion = cls.version & 0xFFFF;
+        this.cls = cls;
     }
 
     @Override
@@ -63,13 +106,25 @@ final class RestrictedCallVisitor implements TransformingVisitor {
         return anythingModified;
     }
 
+    @Override
+    public void visitEnd() throws Exception {
+        generateStaticInitializer();
+    }
+
     private void transformMethod(MethodNode mtd, AnnotationNode anno, AnnoConfig annoCfg) {
         try {
             mtd.instructions.insert(new LabelNode());
-            String checkerMethodName = generateCheckerMethod(annoCfg);
-            MethodInsnNode checkerMethodNode = new MethodInsnNode(INVOKESTATIC,
-                    BytecodeUtils.CHECKER_CLASS_NAME, checkerMethodName, "()V");
-            mtd.instructions.insert(checkerMethodNode);
+            RestrictedCall.Configuration conf = buildConfiguration(annoCfg,
+                    cls.name.replace('/', '.') + "#" + mtd.name + mtd.desc);
+
+            if (INDY_CHECKERS && classVersion >= V1_7)
+                mtd.instructions.insert(createIndyCheck(conf));
+            else {
+                String checkerMethodName = generateChecker(conf, mtd);
+                MethodInsnNode checkerMethodNode = new MethodInsnNode(INVOKESTATIC,
+                        BytecodeUtils.CHECKER_CLASS_NAME, checkerMethodName, "()V");
+                mtd.instructions.insert(checkerMethodNode);
+            }
 
             anythingModified = true;
 
@@ -80,19 +135,19 @@ final class RestrictedCallVisitor implements TransformingVisitor {
         }
     }
 
-    public String nextCheckerMethodName() {
-        String name;
+    public String nextCheckerId() {
+        String id;
 
         do {
-            long id = ThreadLocalRandom.current().nextLong(Integer.MAX_VALUE, Long.MAX_VALUE);
-            name = "__check__" + Long.toString(id, 16) + "__";
-        } while (!takenCheckerMethodNames.add(name)); // just in case
+            id = Long.toString(ThreadLocalRandom.current().nextLong(Integer.MAX_VALUE, Long.MAX_VALUE), 16);
+        } while (!takenCheckerIds.add(id)); // just in case
 
-        return name;
+        return id;
     }
 
-    private String generateCheckerMethod(AnnoConfig annoCfg) throws UnexpectedSetupException {
-        RestrictedCall.Configuration conf = RestrictedCall.Configuration
+    private static RestrictedCall.Configuration buildConfiguration(AnnoConfig annoCfg,
+                                                                   String policyId) throws UnexpectedSetupException {
+        return RestrictedCall.Configuration
                 .newBuilder()
                     .exactExpectedCallStack     (annoCfg.getStringList(RestrictedCall.k_exactExpectedCallStack     ))
                     .prohibitReflectionTraces   (annoCfg.getBoolean   (RestrictedCall.k_prohibitReflectionTraces   ))
@@ -100,11 +155,148 @@ final class RestrictedCallVisitor implements TransformingVisitor {
                     .prohibitArbitraryInvocation(annoCfg.getBoolean   (RestrictedCall.k_prohibitArbitraryInvocation))
                     .permittedSources           (annoCfg.getStringList(RestrictedCall.k_permittedSources           ))
                     .prohibitedSources          (annoCfg.getStringList(RestrictedCall.k_prohibitedSources          ))
+                    .strictClassIdentity        (annoCfg.getBoolean   (RestrictedCall.k_strictClassIdentity        ))
+                    .cacheVerdicts              (annoCfg.getBoolean   (RestrictedCall.k_cacheVerdicts              ))
+                    .sampleChecks               (annoCfg.getBoolean   (RestrictedCall.k_sampleChecks               ))
+                    .auditOnly                  (annoCfg.getBoolean   (RestrictedCall.k_auditOnly                  ))
+                    .policyId                   (policyId)
                 .build();
+    }
 
-        String checkerMethodName = nextCheckerMethodName();
+    /**
+     * The policy is passed to the bootstrap method as static arguments: its boolean options packed into
+     * an int, the sizes of the exactExpectedCallStack and permittedSources lists, and then the elements
+     * of all lists, one after another. See RestrictedCallBootstrap#bootstrap in the API module.
+     */
+    private static InvokeDynamicInsnNode createIndyCheck(RestrictedCall.Configuration conf) {
+        int flags = 0;
 
-        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC | ACC_SYNTHETIC, checkerMethodName, "()V", null, null);
+        if (conf.prohibitReflectionTraces())    flags |= RestrictedCallBootstrap.PROHIBIT_REFLECTION_TRACES;
+        if (conf.prohibitNativeTraces())        flags |= RestrictedCallBootstrap.PROHIBIT_NATIVE_TRACES;
+        if (conf.prohibitArbitraryInvocation()) flags |= RestrictedCallBootstrap.PROHIBIT_ARBITRARY_INVOCATION;
+        if (conf.strictClassIdentity())         flags |= RestrictedCallBootstrap.STRICT_CLASS_IDENTITY;
+        if (conf.cacheVerdicts())               flags |= RestrictedCallBootstrap.CACHE_VERDICTS;
+        if (conf.sampleChecks())                flags |= RestrictedCallBootstrap.SAMPLE_CHECKS;
+        if (conf.auditOnly())                   flags |= RestrictedCallBootstrap.AUDIT_ONLY;
+
+        List<Object> bsmArgs = new ArrayList<>();
+        bsmArgs.add(flags);
+        bsmArgs.add(conf.exactExpectedCallStack().size());
+        bsmArgs.add(conf.permittedSources().size());
+        bsmArgs.add(conf.policyId());
+        bsmArgs.addAll(conf.exactExpectedCallStack());
+        bsmArgs.addAll(conf.permittedSources());
+        bsmArgs.addAll(conf.prohibitedSources());
+
+        Handle bootstrap = new Handle(H_INVOKESTATIC, "me/darksidecode/accesswarden/api/RestrictedCallBootstrap",
+                "bootstrap", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;IIILjava/lang/String;[Ljava/lang/String;)Ljava/lang/invoke/CallSite;", false);
+
+        return new InvokeDynamicInsnNode("check", "()V", bootstrap, bsmArgs.toArray());
+    }
+
+    private String generateChecker(RestrictedCall.Configuration conf, MethodNode mtd) {
+        String checkerId = nextCheckerId();
+        String confFieldName = "__conf__" + checkerId + "__";
+        String configureMethodName = "__configure__" + checkerId + "__";
+        String checkerMethodName = "__check__" + checkerId + "__";
+        String tokenFieldName = STAMP_CALLERS ? generateCallerStamping(conf, mtd, checkerId) : null;
+
+        // The configuration is built and validated just once, when the checker class is initialized,
+        // and is then stored in a constant. See generateStaticInitializer(). Compiled checkers need it
+        // too, for the features that only the generic checker supports (see CompiledChecks in the API).
+        cw.visitField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL | ACC_SYNTHETIC, confFieldName,
+                "Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration;", null, null).visitEnd();
+
+        generateConfigureMethod(conf, configureMethodName);
+        configuredFields.put(confFieldName, configureMethodName);
+
+        if (PolicyCompiler.COMPILE_CHECKERS && PolicyCompiler.canCompile(conf))
+            PolicyCompiler.generateCheckerMethod(cw, conf, checkerMethodName, confFieldName, tokenFieldName);
+        else
+            generateCheckerMethod(conf, checkerMethodName, confFieldName, tokenFieldName);
+
+        return checkerMethodName;
+    }
+
+    /**
+     * Generates the caller stamp token of the specified policy, along with a stamping method for each class
+     * with permitted sources, and registers the policy for CallerStampingVisitor - if the policy is eligible.
+     *
+     * @return name of the token constant field, or null if the policy is not eligible for caller stamping.
+     */
+    private String generateCallerStamping(RestrictedCall.Configuration conf, MethodNode mtd, String checkerId) {
+        // A token only proves who made the call if nothing can happen between stamping and consuming it -
+        // so only the most recent frame may be inspected, and the call must not be dispatched to an override
+        // (which could then pass the token on by calling the protected method with "super").
+        if (!conf.isDirectCallerOnly() || mtd.name.equals("<init>"))
+            return null;
+
+        boolean isStatic = (mtd.access & ACC_STATIC) != 0;
+
+        if (!isStatic && (mtd.access & (ACC_PRIVATE | ACC_FINAL)) == 0 && (cls.access & ACC_FINAL) == 0)
+            return null;
+
+        Map<String, Set<String>> permittedMethods = new LinkedHashMap<>();
+
+        for (String source : conf.permittedSources()) {
+            int separator = source.indexOf('#');
+
+            // Only literal sources can be stamped. Calls made by all other sources are checked as usual.
+            if (separator > 0 && separator == source.lastIndexOf('#') && isLiteralName(source))
+                permittedMethods.computeIfAbsent(source.substring(0, separator).replace('.', '/'),
+                        k -> new HashSet<>()).add(source.substring(separator + 1));
+        }
+
+        if (permittedMethods.isEmpty())
+            return null;
+
+        String tokenFieldName = "__token__" + checkerId + "__";
+        Map<String, String> stampMethods = new HashMap<>();
+        int stampMethodIdx = 0;
+
+        cw.visitField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL | ACC_SYNTHETIC,
+                tokenFieldName, "Ljava/lang/Object;", null, null).visitEnd();
+        tokenFields.add(tokenFieldName);
+
+        for (String permittedClass : permittedMethods.keySet()) {
+            String stampMethodName = "__stamp__" + checkerId + "__" + stampMethodIdx++ + "__";
+            generateStampMethod(stampMethodName, tokenFieldName, permittedClass);
+            stampMethods.put(permittedClass, stampMethodName);
+        }
+
+        stampedPolicies.add(new StampedPolicy(checkerId, cls.name, mtd.name, mtd.desc,
+                isStatic, permittedMethods, stampMethods));
+
+        return tokenFieldName;
+    }
+
+    private static boolean isLiteralName(String source) {
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+
+            if (!Character.isJavaIdentifierPart(c) && c != '.' && c != '#' && c != '<' && c != '>')
+                return false;
+        }
+
+        return true;
+    }
+
+    private void generateStampMethod(String stampMethodName, String tokenFieldName, String permittedClass) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC | ACC_SYNTHETIC, stampMethodName, "(Ljava/lang/invoke/MethodHandles$Lookup;)V", null, null);
+        mv.visitCode();
+        mv.visitFieldInsn(GETSTATIC, BytecodeUtils.CHECKER_CLASS_NAME, tokenFieldName, "Ljava/lang/Object;");
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitLdcInsn(Type.getObjectType(BytecodeUtils.CHECKER_CLASS_NAME));
+        mv.visitLdcInsn(permittedClass.replace('/', '.'));
+        mv.visitMethodInsn(INVOKESTATIC, "me/darksidecode/accesswarden/api/CallerStamps", "stamp", "(Ljava/lang/Object;Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/Class;Ljava/lang/String;)V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(4, 1);
+        mv.visitEnd();
+    }
+
+    private void generateConfigureMethod(RestrictedCall.Configuration conf,
+                                         String configureMethodName) {
+        MethodVisitor mv = cw.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, configureMethodName, "()Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration;", null, null);
         mv.visitCode();
         Label l0 = new Label();
         Label l1 = new Label();
@@ -115,75 +307,83 @@ final class RestrictedCallVisitor implements TransformingVisitor {
         generateSetStringList(conf.exactExpectedCallStack(), mv, "exactExpectedCallStack");
         if (conf.prohibitReflectionTraces()) {
             mv.visitInsn(ICONST_1);
-            Label l4 = new Label();
-            mv.visitLabel(l4);
             mv.visitMethodInsn(INVOKEVIRTUAL, "me/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder", "prohibitReflectionTraces", "(Z)Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder;", false);
         }
         if (conf.prohibitNativeTraces()) {
             mv.visitInsn(ICONST_1);
-            Label l5 = new Label();
-            mv.visitLabel(l5);
             mv.visitMethodInsn(INVOKEVIRTUAL, "me/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder", "prohibitNativeTraces", "(Z)Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder;", false);
         }
         if (conf.prohibitArbitraryInvocation()) {
             mv.visitInsn(ICONST_1);
-            Label l6 = new Label();
-            mv.visitLabel(l6);
             mv.visitMethodInsn(INVOKEVIRTUAL, "me/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder", "prohibitArbitraryInvocation", "(Z)Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder;", false);
         }
-        Label l7 = new Label();
-        mv.visitLabel(l7);
         generateSetStringList(conf.permittedSources(), mv, "permittedSources");
-        Label l8 = new Label();
-        mv.visitLabel(l8);
         generateSetStringList(conf.prohibitedSources(), mv, "prohibitedSources");
-        Label l9 = new Label();
-        mv.visitLabel(l9);
+        if (conf.strictClassIdentity()) {
+            mv.visitInsn(ICONST_1);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "me/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder", "strictClassIdentity", "(Z)Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder;", false);
+            // The checker class is injected into the transformed jar, so it shares the class loader
+            // with the protected methods - resolve permitted classes as the protected methods would.
+            mv.visitLdcInsn(Type.getObjectType(BytecodeUtils.CHECKER_CLASS_NAME));
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Class", "getClassLoader", "()Ljava/lang/ClassLoader;", false);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "me/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder", "classLoader", "(Ljava/lang/ClassLoader;)Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder;", false);
+        }
+        if (conf.cacheVerdicts()) {
+            mv.visitInsn(ICONST_1);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "me/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder", "cacheVerdicts", "(Z)Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder;", false);
+        }
+        if (conf.sampleChecks()) {
+            mv.visitInsn(ICONST_1);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "me/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder", "sampleChecks", "(Z)Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder;", false);
+        }
+        if (conf.auditOnly()) {
+            mv.visitInsn(ICONST_1);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "me/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder", "auditOnly", "(Z)Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder;", false);
+        }
+        mv.visitLdcInsn(conf.policyId());
+        mv.visitMethodInsn(INVOKEVIRTUAL, "me/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder", "policyId", "(Ljava/lang/String;)Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder;", false);
         mv.visitMethodInsn(INVOKEVIRTUAL, "me/darksidecode/accesswarden/api/RestrictedCall$Configuration$Builder", "build", "()Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration;", false);
-        mv.visitVarInsn(ASTORE, 0);
-        Label l10 = new Label();
-        mv.visitLabel(l10);
-        mv.visitVarInsn(ALOAD, 0);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "me/darksidecode/accesswarden/api/RestrictedCall$Configuration", "contextResolutionOptions", "()I", false);
-        mv.visitMethodInsn(INVOKESTATIC, "me/darksidecode/accesswarden/api/ContextResolution", "resolve", "(I)Lme/darksidecode/accesswarden/api/FilteredContext;", false);
-        mv.visitVarInsn(ASTORE, 1);
-        Label l11 = new Label();
-        mv.visitLabel(l11);
-        mv.visitVarInsn(ALOAD, 1);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "me/darksidecode/accesswarden/api/FilteredContext", "filteredCallStack", "()Ljava/util/List;", false);
-        mv.visitMethodInsn(INVOKEINTERFACE, "java/util/List", "size", "()I", true);
-        mv.visitInsn(ICONST_1);
-        Label l12 = new Label();
-        mv.visitJumpInsn(IF_ICMPLE, l12);
-        Label l13 = new Label();
-        mv.visitLabel(l13);
-        mv.visitVarInsn(ALOAD, 1);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "me/darksidecode/accesswarden/api/FilteredContext", "filteredCallStack", "()Ljava/util/List;", false);
-        mv.visitInsn(ICONST_0);
-        mv.visitMethodInsn(INVOKEINTERFACE, "java/util/List", "remove", "(I)Ljava/lang/Object;", true);
-        mv.visitInsn(POP);
-        Label l14 = new Label();
-        mv.visitLabel(l14);
-        mv.visitVarInsn(ALOAD, 1);
-        mv.visitVarInsn(ALOAD, 0);
-        mv.visitMethodInsn(INVOKESTATIC, "me/darksidecode/accesswarden/api/ContextResolution", "ensureCallPermitted", "(Lme/darksidecode/accesswarden/api/FilteredContext;Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration;)V", false);
-        mv.visitJumpInsn(GOTO, l1);
-        mv.visitLabel(l12);
-        mv.visitFrame(F_APPEND, 2, new Object[] { "me/darksidecode/accesswarden/api/RestrictedCall$Configuration", "me/darksidecode/accesswarden/api/FilteredContext" }, 0, null);
-        mv.visitTypeInsn(NEW, "me/darksidecode/accesswarden/api/UnexpectedSetupException");
-        mv.visitInsn(DUP);
-        mv.visitLdcInsn("filtered call stack is unexpectedly small");
-        mv.visitMethodInsn(INVOKESPECIAL, "me/darksidecode/accesswarden/api/UnexpectedSetupException", "<init>", "(Ljava/lang/String;)V", false);
-        mv.visitInsn(ATHROW);
         mv.visitLabel(l1);
-        mv.visitFrame(F_CHOP, 2, null, 0, null);
-        Label l15 = new Label();
-        mv.visitJumpInsn(GOTO, l15);
+        mv.visitInsn(ARETURN);
+        mv.visitLabel(l2);
+        mv.visitFrame(F_SAME1, 0, null, 1, new Object[] { "me/darksidecode/accesswarden/api/UnexpectedSetupException" });
+        generateRethrowUnexpectedSetup(mv);
+        mv.visitMaxs(5, 1);
+        mv.visitEnd();
+    }
+
+    private void generateCheckerMethod(RestrictedCall.Configuration conf, String checkerMethodName,
+                                       String confFieldName, String tokenFieldName) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC | ACC_SYNTHETIC, checkerMethodName, "()V", null, null);
+        mv.visitCode();
+
+        if (tokenFieldName != null)
+            BytecodeUtils.generateConsumeCallerStamp(mv, tokenFieldName);
+
+        Label l0 = new Label();
+        Label l1 = new Label();
+        Label l2 = new Label();
+        mv.visitTryCatchBlock(l0, l1, l2, "me/darksidecode/accesswarden/api/UnexpectedSetupException");
+        mv.visitLabel(l0);
+        // The checker method sits between the protected method and ContextResolution, so the
+        // protected method frame is filtered out during the walk as well. The options are known
+        // at this point already, so push them as a constant.
+        BytecodeUtils.pushIntConstant(mv, conf.contextResolutionOptions()
+                | ContextResolution.Options.FILTER_PROTECTED_METHOD);
+        mv.visitFieldInsn(GETSTATIC, BytecodeUtils.CHECKER_CLASS_NAME, confFieldName, "Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration;");
+        mv.visitMethodInsn(INVOKESTATIC, "me/darksidecode/accesswarden/api/ContextResolution", "ensureCallPermitted", "(ILme/darksidecode/accesswarden/api/RestrictedCall$Configuration;)V", false);
+        mv.visitLabel(l1);
+        mv.visitInsn(RETURN);
         mv.visitLabel(l2);
         mv.visitFrame(F_SAME1, 0, null, 1, new Object[] { "me/darksidecode/accesswarden/api/UnexpectedSetupException" });
+        generateRethrowUnexpectedSetup(mv);
+        mv.visitMaxs(5, 1);
+        mv.visitEnd();
+    }
+
+    private static void generateRethrowUnexpectedSetup(MethodVisitor mv) {
+        // Expects the caught UnexpectedSetupException on top of the stack.
         mv.visitVarInsn(ASTORE, 0);
-        Label l16 = new Label();
-        mv.visitLabel(l16);
         mv.visitTypeInsn(NEW, "java/lang/SecurityException");
         mv.visitInsn(DUP);
         mv.visitTypeInsn(NEW, "java/lang/StringBuilder");
@@ -197,16 +397,35 @@ final class RestrictedCallVisitor implements TransformingVisitor {
         mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
         mv.visitMethodInsn(INVOKESPECIAL, "java/lang/SecurityException", "<init>", "(Ljava/lang/String;)V", false);
         mv.visitInsn(ATHROW);
-        mv.visitLabel(l15);
-        mv.visitFrame(F_SAME, 0, null, 0, null);
+    }
+
+    private void generateStaticInitializer() {
+        if (configuredFields.isEmpty() && tokenFields.isEmpty())
+            return;
+
+        // Configurations are immutable once built, so there is no need to rebuild and
+        // revalidate them on every call - do this once per checker, when the class loads.
+        MethodVisitor mv = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+
+        // Tokens go first: building configurations runs code that could call protected methods
+        // while the class is still being initialized, and their checks must find the tokens set.
+        for (String tokenField : tokenFields) {
+            // Tokens are compared by identity, so any private object will do.
+            mv.visitTypeInsn(NEW, "java/lang/Object");
+            mv.visitInsn(DUP);
+            mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+            mv.visitFieldInsn(PUTSTATIC, BytecodeUtils.CHECKER_CLASS_NAME, tokenField, "Ljava/lang/Object;");
+        }
+
+        for (Map.Entry<String, String> entry : configuredFields.entrySet()) {
+            mv.visitMethodInsn(INVOKESTATIC, BytecodeUtils.CHECKER_CLASS_NAME, entry.getValue(), "()Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration;", false);
+            mv.visitFieldInsn(PUTSTATIC, BytecodeUtils.CHECKER_CLASS_NAME, entry.getKey(), "Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration;");
+        }
+
         mv.visitInsn(RETURN);
-        mv.visitLocalVariable("conf", "Lme/darksidecode/accesswarden/api/RestrictedCall$Configuration;", null, l10, l1, 0);
-        mv.visitLocalVariable("ctx", "Lme/darksidecode/accesswarden/api/FilteredContext;", null, l11, l1, 1);
-        mv.visitLocalVariable("ex", "Lme/darksidecode/accesswarden/api/UnexpectedSetupException;", null, l16, l15, 0);
-        mv.visitMaxs(5, 2);
+        mv.visitMaxs(2, 0);
         mv.visitEnd();
-
-        return checkerMethodName;
     }
 
     private static void generateSetStringList(List<String> src, MethodVisitor mv, String listName) {
@@ -231,8 +450,6 @@ final class RestrictedCallVisitor implements TransformingVisitor {
                 mv.visitInsn(AASTORE);
             }
 
-            Label l3 = new Label();
-            mv.visitLabel(l3);
             mv.visitMethodInsn(INVOKESTATIC, "java/util/Arrays", "asList", "([Ljava/lang/Object;)Ljava/util/List;", false);
         }
 
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2021 German Vekhorev (DarksideCode)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.darksidecode.accesswarden.core;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A policy whose permitted callers are rewritten to stamp the current thread before calling the protected
+ * method (see CallerStamps in the API module). Registered by {@link RestrictedCallVisitor}, which generates
+ * the token and the stamping methods in the checker class, and consumed by {@link CallerStampingVisitor},
+ * which rewrites the calls.
+ */
+final class StampedPolicy {
+
+    final String checkerId;
+
+    // The protected method.
+    final String owner;
+    final String name;
+    final String desc;
+    final boolean isStatic;
+
+    /**
+     * Internal name of a permitted class -> names of its permitted methods.
+     */
+    final Map<String, Set<String>> permittedMethods;
+
+    /**
+     * Internal name of a permitted class -> name of the checker class method that stamps calls made by that class.
+     */
+    final Map<String, String> stampMethods;
+
+    StampedPolicy(String checkerId, String owner, String name, String desc, boolean isStatic,
+                  Map<String, Set<String>> permittedMethods, Map<String, String> stampMethods) {
+        this.checkerId = checkerId;
+        this.owner = owner;
+        this.name = name;
+        this.desc = desc;
+        this.isStatic = isStatic;
+        this.permittedMethods = Collections.unmodifiableMap(permittedMethods);
+        this.stampMethods = Collections.unmodifiableMap(stampMethods);
+    }
+
+    boolean isPermittedCaller(String callerClass, String callerMethod) {
+        Set<String> methods = permittedMethods.get(callerClass);
+        return methods != null && methods.contains(callerMethod);
+    }
+
+}
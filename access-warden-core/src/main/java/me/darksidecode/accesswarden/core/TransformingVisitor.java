@@ -29,6 +29,14 @@ interface TransformingVisitor extends Opcodes {
 
     default void visitMethod(MethodNode mtd) throws Exception {}
 
+    /**
+     * Called after all fields and methods of the class passed to the last visitClass
+     * call were visited. Members can only be added to the class at this point.
+     */
+    default void visitClassEnd() throws Exception {}
+
+    default void visitEnd() throws Exception {}
+
     default boolean anythingModified() {
         return false;
     }
@@ -108,7 +108,8 @@ public class AccessWardenDemo {
             prohibitReflectionTraces    = true,
             prohibitNativeTraces        = true,
             prohibitArbitraryInvocation = true,
-            permittedSources            = "me.darksidecode.accesswarden.demo.AccessWardenDemo#first"
+            permittedSources            = "me.darksidecode.accesswarden.demo.AccessWardenDemo#first",
+            strictClassIdentity         = true
     )
     private static void test(int x) {
         System.out.println(">>> Successful test call, x=" + x);
@@ -118,7 +119,8 @@ public class AccessWardenDemo {
             prohibitedSources = {
                     "me.darksidecode.accesswarden.demo.AccessWardenDemo#prohibitTest*",
                     "me.darksidecode.accesswarden.demo.AccessWardenDemo#otherProhibitedTest"
-            }
+            },
+            cacheVerdicts = true
     )
     private static void prohibitTest() {
         System.out.println(">>> Successful prohibitTest call");